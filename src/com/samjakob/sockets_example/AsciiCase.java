@@ -0,0 +1,114 @@
+package com.samjakob.sockets_example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Converts UTF-8 text to upper case without turning it into a String
+ * first.
+ *
+ * The obvious way to do this is to decode the bytes into a String, call
+ * toUpperCase on it and encode the result back into bytes. That allocates
+ * a new char array, String and byte array for every message, and looks up
+ * the default locale every time, which is a lot of work when most of the
+ * messages we're sent are plain ASCII.
+ *
+ * ASCII is a subset of UTF-8 (every byte of a multi-byte UTF-8 character
+ * has its top bit set, and no ASCII byte does), so an ASCII message can be
+ * converted by flipping one bit of each lower case letter, directly in the
+ * buffer it was received into. Only messages that turn out to contain other
+ * characters take the slow path through a String.
+ */
+final class AsciiCase {
+
+    /** Eight copies of a byte with only its top bit set. */
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /**
+     * Added to each byte of a word, this sets the byte's top bit if (and
+     * only if) it is at least 'a'. (0x80 - 'a' = 0x1F)
+     */
+    private static final long ADD_TO_REACH_A = 0x1F1F1F1F1F1F1F1FL;
+
+    /**
+     * Added to each byte of a word, this sets the byte's top bit if (and
+     * only if) it is greater than 'z'. (0x80 - 'z' - 1 = 0x05)
+     */
+    private static final long ADD_TO_PASS_Z = 0x0505050505050505L;
+
+    private AsciiCase() {}
+
+    /**
+     * Converts the given UTF-8 text to upper case.
+     *
+     * If the text is ASCII, it is converted in place and the same buffer is
+     * returned, so nothing is allocated. Otherwise, a new buffer holding the
+     * upper case text is returned (and the given buffer may have been
+     * partly converted).
+     *
+     * @param text The text, from its position to its limit. The position
+     *             and limit are left as they are.
+     * @return A buffer holding the upper case text, from its position to its
+     *         limit.
+     */
+    static ByteBuffer toUpperCase(ByteBuffer text) {
+        if (toUpperCaseAscii(text)) return text;
+
+        // The text isn't ASCII, so let the String class deal with it. We use
+        // the root locale so that the result doesn't depend on where the
+        // server happens to run (and matches what the ASCII path does).
+        var message = StandardCharsets.UTF_8.decode(text.duplicate()).toString();
+        return StandardCharsets.UTF_8.encode(message.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Converts the given text to upper case in place, as long as it is
+     * ASCII.
+     *
+     * The text is processed eight bytes at a time by treating each group of
+     * eight bytes as one long (a technique known as 'SIMD within a
+     * register'). Adding a constant to every byte at once, then checking the
+     * top bit of each byte, tells us which bytes are lower case letters
+     * without looking at them one by one. This works because none of the
+     * additions can carry into the next byte, as every byte of ASCII text is
+     * below 0x80.
+     *
+     * @param text The text, from its position to its limit. The position
+     *             and limit are left as they are.
+     * @return Whether the text was ASCII. If it wasn't, the text may have
+     *         been converted up to the first word that contains a non-ASCII
+     *         byte.
+     */
+    static boolean toUpperCaseAscii(ByteBuffer text) {
+        var index = text.position();
+        var limit = text.limit();
+
+        for (; index + Long.BYTES <= limit; index += Long.BYTES) {
+            var word = text.getLong(index);
+            if ((word & HIGH_BITS) != 0) return false;
+
+            // The top bit of each byte of this mask is set if that byte is a
+            // lower case letter.
+            var lowerCase = (word + ADD_TO_REACH_A)
+                & ~(word + ADD_TO_PASS_Z)
+                & HIGH_BITS;
+
+            // Lower and upper case letters differ only by 0x20, which is the
+            // top bit moved down two places. We only write the word back if
+            // something changed, so text that is already upper case is just
+            // read.
+            if (lowerCase != 0) text.putLong(index, word ^ (lowerCase >>> 2));
+        }
+
+        // Deal with the last few bytes (fewer than eight) one at a time.
+        for (; index < limit; index++) {
+            var b = text.get(index);
+            if (b < 0) return false;
+            if (b >= 'a' && b <= 'z') text.put(index, (byte) (b ^ 0x20));
+        }
+
+        return true;
+    }
+
+}
@@ -0,0 +1,321 @@
+package com.samjakob.sockets_example;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct {@link ByteBuffer}s that connections lease for reading
+ * and writing and give back when they are done with them, so that serving
+ * a message doesn't mean allocating (and later garbage collecting) new
+ * buffers for it.
+ *
+ * Buffers come in a fixed set of sizes (powers of two from
+ * {@link #MIN_SIZE} to {@link #MAX_SIZE}), and a lease is given the
+ * smallest size that fits. Each size is carved out of large 'slabs' of
+ * direct memory, so the pool makes one large allocation rather than many
+ * small ones. Requests larger than {@link #MAX_SIZE} are rare (only huge
+ * messages need them), so they are given an ordinary heap buffer instead.
+ *
+ * Every thread keeps a small cache of buffers of each size. A connection is
+ * served by a single thread, which both leases and releases its buffers, so
+ * most leases are served from (and returned to) that thread's cache without
+ * touching anything shared with other threads.
+ *
+ * A lease that is never released is a leak: the pool simply carves more
+ * memory. With {@link #setLeakDetection(boolean) leak detection} turned on,
+ * the pool records where each buffer was leased and reports any lease that
+ * is garbage collected without having been released. This costs a stack
+ * trace per lease, so it is meant for debugging.
+ */
+final class BufferPool {
+
+    /** The smallest buffer size, in bytes. */
+    static final int MIN_SIZE = 256;
+
+    /** The largest buffer size that is pooled, in bytes. */
+    static final int MAX_SIZE = 64 * 1024;
+
+    /**
+     * The most buffers cut from each slab of direct memory, and the largest
+     * a slab may be (so the largest sizes have fewer buffers per slab).
+     */
+    private static final int BUFFERS_PER_SLAB = 64;
+    private static final int MAX_SLAB_SIZE = 1024 * 1024;
+
+    /** The most buffers of each size that a thread keeps to itself. */
+    private static final int THREAD_CACHE_SIZE = 16;
+
+    private static final int SIZE_CLASSES =
+        Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+    /**
+     * Holds the pool shared by every connection, which is only created the
+     * first time it is needed.
+     */
+    private static final class Shared {
+        private static final BufferPool POOL = new BufferPool();
+    }
+
+    /**
+     * A buffer leased from the pool. The buffer must not be used after
+     * {@link #release()} has been called, as it may already have been
+     * leased to someone else.
+     */
+    static final class Lease implements Releasable {
+        private final BufferPool pool;
+        private final int sizeClass;
+        private final LeakTracker tracker;
+        private ByteBuffer buffer;
+
+        private Lease(
+            BufferPool pool,
+            int sizeClass,
+            ByteBuffer buffer,
+            LeakTracker tracker
+        ) {
+            this.pool = pool;
+            this.sizeClass = sizeClass;
+            this.buffer = buffer;
+            this.tracker = tracker;
+        }
+
+        /**
+         * Returns the leased buffer.
+         *
+         * @throws IllegalStateException If the lease has been released.
+         */
+        ByteBuffer buffer() {
+            if (buffer == null) {
+                throw new IllegalStateException("The buffer was released.");
+            }
+
+            return buffer;
+        }
+
+        /**
+         * Gives the buffer back to the pool.
+         *
+         * @throws IllegalStateException If the lease was already released.
+         */
+        @Override
+        public void release() {
+            var released = buffer();
+            buffer = null;
+
+            if (tracker != null) tracker.released();
+            pool.giveBack(sizeClass, released);
+        }
+    }
+
+    /**
+     * Reports a lease that became unreachable without being released. This
+     * must not refer to the lease itself, or the lease would never become
+     * unreachable.
+     */
+    private static final class LeakTracker implements Runnable {
+        private final Throwable leasedAt = new Throwable("Leased here");
+        private final LongAdder leaks;
+        private Cleaner.Cleanable cleanable;
+        private volatile boolean released;
+
+        private LeakTracker(LongAdder leaks) {
+            this.leaks = leaks;
+        }
+
+        void released() {
+            released = true;
+            cleanable.clean();
+        }
+
+        @Override
+        public void run() {
+            if (released) return;
+
+            leaks.increment();
+            System.err.println(
+                "A pooled buffer was garbage collected without being " +
+                "released."
+            );
+            leasedAt.printStackTrace();
+        }
+    }
+
+    /**
+     * The buffers of each size that any thread may take. Each deque is
+     * guarded by itself.
+     */
+    private final ArrayDeque<ByteBuffer>[] free;
+
+    /** Each thread's own buffers of each size. */
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches =
+        ThreadLocal.withInitial(BufferPool::newDeques);
+
+    /** Watches for leaks, if leak detection is turned on. */
+    private volatile Cleaner cleaner;
+
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder slabs = new LongAdder();
+    private final LongAdder slabBytes = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    BufferPool() {
+        this.free = newDeques();
+    }
+
+    /**
+     * Returns the pool shared by every connection.
+     */
+    static BufferPool shared() {
+        return Shared.POOL;
+    }
+
+    /**
+     * Turns leak detection on or off for the buffers leased from now on.
+     */
+    void setLeakDetection(boolean enabled) {
+        cleaner = enabled ? Cleaner.create() : null;
+    }
+
+    /**
+     * Leases a buffer with at least the given capacity. The buffer is
+     * cleared (its position is 0 and its limit is its capacity), but its
+     * contents are whatever it last held.
+     *
+     * @param minCapacity The smallest capacity the buffer may have.
+     * @return The lease, which must be released once the buffer is no
+     *         longer needed.
+     */
+    Lease lease(int minCapacity) {
+        leases.increment();
+
+        var sizeClass = sizeClassOf(minCapacity);
+        ByteBuffer buffer;
+        if (sizeClass < 0) {
+            unpooled.increment();
+            buffer = ByteBuffer.allocate(minCapacity);
+        } else {
+            buffer = take(sizeClass);
+        }
+
+        var cleaner = this.cleaner;
+        if (cleaner == null) return new Lease(this, sizeClass, buffer, null);
+
+        var tracker = new LeakTracker(leaks);
+        var lease = new Lease(this, sizeClass, buffer, tracker);
+        tracker.cleanable = cleaner.register(lease, tracker);
+        return lease;
+    }
+
+    /**
+     * Hands the calling thread's cached buffers back to the shared pool.
+     * A thread that is about to finish (e.g., one that served a single
+     * connection) should call this, or its cached buffers are lost to the
+     * pool.
+     */
+    void trimThreadCache() {
+        var caches = threadCaches.get();
+        for (var sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+            var shared = free[sizeClass];
+            synchronized (shared) {
+                shared.addAll(caches[sizeClass]);
+            }
+            caches[sizeClass].clear();
+        }
+
+        threadCaches.remove();
+    }
+
+    /**
+     * Describes how the pool has been used, for {@link ServerMetrics}.
+     */
+    String describe() {
+        var leased = leases.sum();
+        var released = releases.sum();
+        return "buffers: leases=" + leased +
+            ", outstanding=" + (leased - released) +
+            ", thread cache hits=" + threadCacheHits.sum() +
+            ", slabs=" + slabs.sum() +
+            " (" + slabBytes.sum() / 1024 + " KiB)" +
+            ", unpooled=" + unpooled.sum() +
+            ", leaks=" + leaks.sum();
+    }
+
+    private ByteBuffer take(int sizeClass) {
+        var cache = threadCaches.get()[sizeClass];
+        var buffer = cache.pollLast();
+        if (buffer != null) {
+            threadCacheHits.increment();
+            return buffer.clear();
+        }
+
+        var shared = free[sizeClass];
+        synchronized (shared) {
+            buffer = shared.pollLast();
+            if (buffer == null) buffer = carveSlab(sizeClass, shared);
+        }
+
+        return buffer.clear();
+    }
+
+    private void giveBack(int sizeClass, ByteBuffer buffer) {
+        releases.increment();
+        if (sizeClass < 0) return;
+
+        var cache = threadCaches.get()[sizeClass];
+        if (cache.size() < THREAD_CACHE_SIZE) {
+            cache.addLast(buffer);
+            return;
+        }
+
+        var shared = free[sizeClass];
+        synchronized (shared) {
+            shared.addLast(buffer);
+        }
+    }
+
+    /**
+     * Cuts a new slab into buffers of the given size, adding all but one
+     * of them to the shared deque and returning the last. Must be called
+     * whilst holding the lock on the deque.
+     */
+    private ByteBuffer carveSlab(int sizeClass, ArrayDeque<ByteBuffer> shared) {
+        var size = MIN_SIZE << sizeClass;
+        var slabSize = Math.min(MAX_SLAB_SIZE, size * BUFFERS_PER_SLAB);
+        slabs.increment();
+        slabBytes.add(slabSize);
+
+        var slab = ByteBuffer.allocateDirect(slabSize);
+        for (var offset = 0; offset < slabSize - size; offset += size) {
+            shared.addLast(slab.slice(offset, size));
+        }
+
+        return slab.slice(slabSize - size, size);
+    }
+
+    /**
+     * Returns the index of the smallest size that can hold the given
+     * number of bytes, or -1 if it is larger than {@link #MAX_SIZE}.
+     */
+    private static int sizeClassOf(int capacity) {
+        if (capacity > MAX_SIZE) return -1;
+        if (capacity <= MIN_SIZE) return 0;
+
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1)
+            - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static ArrayDeque<ByteBuffer>[] newDeques() {
+        var deques = new ArrayDeque[SIZE_CLASSES];
+        for (var i = 0; i < deques.length; i++) {
+            deques[i] = new ArrayDeque<ByteBuffer>();
+        }
+        return deques;
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.samjakob.sockets_example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed set of worker threads, with a bounded queue of work waiting for
+ * them, that runs message handlers which are too slow to run on an event
+ * loop (see {@link MessageHandler#execution()}).
+ *
+ * An event loop serves many connections, so a handler that spends a long
+ * time computing (or waiting) on the loop's thread holds up every one of
+ * them. Running such handlers here instead keeps the loop free to serve
+ * everyone else. The name comes from the walls that divide a ship's hull
+ * into compartments, so that a leak in one doesn't sink the whole ship:
+ * however much heavy work arrives, it can only ever fill this bulkhead's
+ * threads and queue.
+ *
+ * Work that arrives when the queue is already full is rejected rather than
+ * queued, so that the server answers at once that it is too busy instead of
+ * letting the queue (and every request's wait) grow without limit. Work
+ * whose sender can simply be made to wait, because it already bounds how
+ * much it sends, may use {@link #executeWhenRoom(Runnable)} instead.
+ */
+final class Bulkhead {
+
+    /** The name used for the bulkhead's threads and in its metrics. */
+    private final String name;
+
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /** The most work that has been waiting in the queue at once. */
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+    /**
+     * Creates a bulkhead and starts its threads. The threads are daemon
+     * threads, so they don't keep the server running by themselves.
+     *
+     * @param name The name used for the bulkhead's threads (followed by a
+     *             number) and in its metrics.
+     * @param threads The number of worker threads.
+     * @param queueSize The most work that may wait for a thread.
+     */
+    Bulkhead(String name, int threads, int queueSize) {
+        this.name = name;
+
+        var threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            task -> {
+                var thread = new Thread(
+                    task, name + "-" + threadNumber.getAndIncrement()
+                );
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Runs a task on one of the bulkhead's threads, unless the queue is
+     * full. This may be called from any thread.
+     *
+     * @param task The task.
+     * @return Whether the task was accepted. If it wasn't, it will never
+     *         run.
+     */
+    boolean execute(Runnable task) {
+        try {
+            executor.execute(counted(task));
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            return false;
+        }
+
+        peakQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+        return true;
+    }
+
+    /**
+     * Runs a task on one of the bulkhead's threads, waiting for room in the
+     * queue if it is full rather than turning the task away. This may be
+     * called from any thread, but it makes that thread wait as long as the
+     * bulkhead is busy, so it is only for callers that are happy to be held
+     * up (and don't hold up anyone else by waiting).
+     *
+     * @param task The task.
+     * @throws InterruptedException If the thread is interrupted whilst
+     *                              waiting, in which case the task will
+     *                              never run.
+     */
+    void executeWhenRoom(Runnable task) throws InterruptedException {
+        // ThreadPoolExecutor.execute only ever rejects work when the queue
+        // is full, so the task is put straight into the queue instead. That
+        // is safe because every thread was started up front and never stops
+        // (a thread that dies is replaced), so something always takes it.
+        executor.getQueue().put(counted(task));
+
+        peakQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+    }
+
+    /** Wraps a task so that it is counted as completed once it has run. */
+    private Runnable counted(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } finally {
+                completed.increment();
+            }
+        };
+    }
+
+    /**
+     * Describes the bulkhead's load, for {@link ServerMetrics}: how much
+     * work is waiting (now and at most), how many threads are busy, and how
+     * much work has been done and turned away.
+     */
+    String describe() {
+        return name +
+            ": queued=" + executor.getQueue().size() +
+            " (peak " + peakQueueDepth.get() + ")" +
+            ", busy=" + executor.getActiveCount() +
+            "/" + executor.getMaximumPoolSize() +
+            ", completed=" + completed.sum() +
+            ", rejected=" + rejected.sum();
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.samjakob.sockets_example;
+
+/**
+ * Holds the options that the client was started with.
+ *
+ * These are parsed from the command line arguments given to
+ * {@link MyClient#main(String[])}, which are expected to be in the form
+ * {@code --option=value}, just like the server's (see {@link ServerConfig}).
+ */
+class ClientConfig {
+
+    /**
+     * Whether to ask the server to compress the connection.
+     */
+    boolean compression = true;
+
+    /**
+     * The size (in bytes) a message must be before it is compressed, if the
+     * server agreed to compression.
+     */
+    int compressionThreshold = FrameCompressor.DEFAULT_THRESHOLD;
+
+    /**
+     * Whether to reconnect (and send unanswered requests again) if the
+     * connection drops, rather than giving up.
+     */
+    boolean reconnect = true;
+
+    /**
+     * The most requests that may be waiting for a reply whilst the client
+     * is reconnecting. Anything sent beyond this fails straight away, so
+     * that a server that stays down doesn't make the client hold on to an
+     * ever-growing backlog.
+     */
+    int maxPendingRequests = 1024;
+
+    /**
+     * The longest (in milliseconds) the client may wait before its first
+     * attempt to reconnect. This doubles after each failed attempt, up to
+     * {@link #reconnectMaxDelayMillis}.
+     */
+    long reconnectBaseDelayMillis = 100;
+
+    /**
+     * The longest (in milliseconds) the client may wait between attempts to
+     * reconnect.
+     */
+    long reconnectMaxDelayMillis = 10_000;
+
+    /**
+     * A file whose lines are sent to the server without any prompts (or
+     * "-" for standard input), or null for the interactive console. See
+     * {@link MyClient#startBulk()}.
+     */
+    String input;
+
+    /**
+     * In bulk mode, the most lines that may be waiting for a reply at once.
+     */
+    int window = 1024;
+
+    /**
+     * Parses the given command line arguments into a {@link ClientConfig}.
+     *
+     * @param args The command line arguments, e.g., {@code --compression=off}.
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException If an argument is not recognized or
+     *                                  has an invalid value.
+     */
+    static ClientConfig parse(String[] args) {
+        var config = new ClientConfig();
+
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException(
+                    "Expected an argument of the form --option=value but " +
+                    "got: " + arg
+                );
+            }
+
+            var name = arg.substring(2, separator);
+            var value = arg.substring(separator + 1);
+
+            switch (name) {
+                case "compression" ->
+                    config.compression = ServerConfig.parseSwitch(name, value);
+                case "compression-threshold" -> config.compressionThreshold =
+                    ServerConfig.parseNonNegative(name, value);
+                case "reconnect" ->
+                    config.reconnect = ServerConfig.parseSwitch(name, value);
+                case "max-pending" -> config.maxPendingRequests =
+                    ServerConfig.parsePositive(name, value);
+                case "reconnect-delay" -> config.reconnectBaseDelayMillis =
+                    ServerConfig.parsePositive(name, value);
+                case "reconnect-max-delay" -> config.reconnectMaxDelayMillis =
+                    ServerConfig.parsePositive(name, value);
+                case "input" -> config.input = value;
+                case "window" ->
+                    config.window = ServerConfig.parsePositive(name, value);
+                default -> throw new IllegalArgumentException(
+                    "Unknown option: --" + name
+                );
+            }
+        }
+
+        return config;
+    }
+
+    /** Returns a short description of the accepted arguments. */
+    static String usage() {
+        return String.join("\n",
+            "Usage: MyClient [--option=value ...]",
+            "  --compression=on|off whether to ask the server to compress",
+            "                       the connection (default: on)",
+            "  --compression-threshold=BYTES",
+            "                       the smallest message that is compressed",
+            "                       (default: " +
+                FrameCompressor.DEFAULT_THRESHOLD + ")",
+            "  --reconnect=on|off   whether to reconnect if the connection",
+            "                       drops (default: on)",
+            "  --max-pending=N      the most requests held whilst",
+            "                       reconnecting (default: 1024)",
+            "  --reconnect-delay=MS the longest wait before the first",
+            "                       reconnection attempt (default: 100)",
+            "  --reconnect-max-delay=MS",
+            "                       the longest wait between attempts",
+            "                       (default: 10000)",
+            "  --input=FILE|-       send every line of a file (or of standard",
+            "                       input, for -) without prompts, and write",
+            "                       the replies to standard output",
+            "  --window=N           the most lines waiting for a reply at",
+            "                       once with --input (default: 1024)"
+        );
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.samjakob.sockets_example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client's counterpart to the server's {@link EventLoop}: a single
+ * thread that does the reading and writing for any number of
+ * {@link ScuffedClient} connections.
+ *
+ * A program that talks to many servers (or opens many connections to one
+ * server) therefore only needs one thread for all of its network I/O,
+ * rather than a reader thread per connection. Most programs can simply use
+ * the {@link #shared()} loop, which {@link ScuffedClient} uses by default.
+ *
+ * As with the server's event loop, other threads must not touch the loop's
+ * channels directly; they hand it work with {@link #execute(Runnable)}.
+ */
+public final class ClientEventLoop implements Closeable, Runnable {
+
+    /**
+     * Holds the shared loop, which is only created (and its thread started)
+     * the first time it is needed.
+     */
+    private static final class Shared {
+        private static final ClientEventLoop LOOP =
+            new ClientEventLoop("scuffed-client-io");
+    }
+
+    /**
+     * The selector that tells us which of our connections are ready.
+     */
+    private final Selector selector;
+
+    /**
+     * The thread that runs this loop.
+     */
+    private final Thread thread;
+
+    /**
+     * Work handed to this loop by other threads, waiting to be run on the
+     * loop's own thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Delayed work (e.g., reconnection attempts), which the loop runs
+     * between selections. The client doesn't need precise timing, so the
+     * ticks are the same length as the server's default.
+     */
+    private final TimingWheel timers =
+        new TimingWheel(TimeUnit.MILLISECONDS.toNanos(10), 512);
+
+    /**
+     * Returns the loop shared by every client that isn't given a loop of its
+     * own.
+     */
+    public static ClientEventLoop shared() {
+        return Shared.LOOP;
+    }
+
+    /**
+     * Creates and starts a new event loop.
+     *
+     * The loop's thread is a daemon thread, so it won't keep the program
+     * running once everything else has finished.
+     *
+     * @param name The name given to the loop's thread.
+     * @throws UncheckedIOException If the selector could not be opened.
+     */
+    public ClientEventLoop(String name) {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(
+                "Failed to open a selector for the client.", ex
+            );
+        }
+
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Runs the given task on this loop's thread. This may be called from
+     * any thread.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the given task on this loop's thread after (at least) the given
+     * delay. This must be called on the loop's own thread.
+     *
+     * @param delayNanos The delay, in nanoseconds.
+     * @param task The task to run.
+     * @return The timeout, which can be used to cancel the task.
+     */
+    TimingWheel.Timeout schedule(long delayNanos, Runnable task) {
+        return timers.schedule(delayNanos, task);
+    }
+
+    /**
+     * Returns whether the calling thread is this loop's thread.
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers a client's channel with this loop's selector. This must be
+     * called on the loop's own thread.
+     *
+     * @param channel The (non-blocking) channel.
+     * @param interestOps The operations to be told about.
+     * @param client The client the channel belongs to.
+     * @return The channel's selection key.
+     * @throws ClosedChannelException If the channel is closed.
+     */
+    SelectionKey register(
+        SocketChannel channel,
+        int interestOps,
+        ScuffedClient client
+    ) throws ClosedChannelException {
+        return channel.register(selector, interestOps, client);
+    }
+
+    /**
+     * Stops the loop, closing every connection that is still open on it.
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!thread.isInterrupted()) {
+            try {
+                var waitNanos = timers.nanosUntilNextTick(System.nanoTime());
+                if (waitNanos < 0) {
+                    selector.select();
+                } else if (waitNanos == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select((waitNanos + 999_999) / 1_000_000);
+                }
+            } catch (IOException ex) {
+                System.err.println("The client's event loop failed to select.");
+                ex.printStackTrace();
+                break;
+            }
+
+            var keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                var key = keys.next();
+                keys.remove();
+
+                var client = (ScuffedClient) key.attachment();
+                try {
+                    if (key.isConnectable()) client.onConnectable();
+                    if (key.isValid() && key.isReadable()) client.onReadable();
+                    if (key.isValid() && key.isWritable()) client.onWritable();
+                } catch (CancelledKeyException ignored) {
+                    // The connection was closed whilst we were handling it.
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    System.err.println("A client task failed.");
+                    ex.printStackTrace();
+                }
+            }
+
+            timers.advance(System.nanoTime());
+        }
+
+        for (var key : selector.keys()) {
+            ((ScuffedClient) key.attachment()).closeNow(
+                new IOException("The client's event loop was stopped.")
+            );
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // We're shutting down anyway.
+        }
+    }
+
+}
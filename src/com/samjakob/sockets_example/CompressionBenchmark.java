@@ -0,0 +1,167 @@
+package com.samjakob.sockets_example;
+
+import java.lang.management.ManagementFactory;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * A runnable benchmark that finds the message size at which compressing a
+ * connection starts to pay for itself.
+ *
+ * For each message size, it sends a stream of repetitive text messages
+ * through a {@link FrameCompressor} (compressing and then decompressing
+ * each one, as the two ends of a connection would) and measures how many
+ * bytes each message takes up and how much CPU time the compression costs.
+ *
+ * A message is 'cheaper' compressed when the time saved sending fewer bytes
+ * over the link is more than the CPU time spent compressing it. The faster
+ * the link, the larger a message has to be before that happens.
+ *
+ * Usage: {@code CompressionBenchmark [--mbps=N] [--messages=N]}, where
+ * {@code --mbps} is the speed of the link in megabits per second (default:
+ * 10, a modest WAN link).
+ */
+public class CompressionBenchmark {
+
+    /** The message sizes (in bytes) that are measured. */
+    private static final int[] SIZES = {
+        16, 32, 64, 128, 256, 512, 1024, 4096, 16384, 65536
+    };
+
+    /** Words the messages are made up from, to make them repetitive. */
+    private static final String[] WORDS = {
+        "GET", "POST", "/api/orders", "/api/users", "status=200",
+        "status=404", "user_id=", "latency_ms=", "region=eu-west",
+        "region=us-east", "INFO", "WARN", "request", "completed", "in"
+    };
+
+    public static void main(String[] args) {
+        var mbps = 10;
+        var messages = 2_000;
+
+        for (var arg : args) {
+            if (arg.startsWith("--mbps=")) {
+                mbps = ServerConfig.parsePositive(
+                    "mbps", arg.substring("--mbps=".length())
+                );
+            } else if (arg.startsWith("--messages=")) {
+                messages = ServerConfig.parsePositive(
+                    "messages", arg.substring("--messages=".length())
+                );
+            } else {
+                System.err.println("Unknown option: " + arg);
+                System.err.println(
+                    "Usage: CompressionBenchmark [--mbps=N] [--messages=N]"
+                );
+                return;
+            }
+        }
+
+        var nanosPerByte = 8_000.0 / mbps;
+        var breakEven = -1;
+
+        System.out.printf(
+            "Link speed: %d Mbit/s, %d messages per size%n%n", mbps, messages
+        );
+        System.out.printf(
+            "%8s %10s %8s %14s %14s %14s%n",
+            "size", "compressed", "ratio", "cpu us/msg",
+            "raw us/msg", "deflate us/msg"
+        );
+
+        // Run the whole thing once first so that the JIT compiler has warmed
+        // up before anything is measured.
+        for (var size : SIZES) measure(size, messages);
+
+        for (var size : SIZES) {
+            var result = measure(size, messages);
+            var rawMicros = size * nanosPerByte / 1_000;
+            var deflateMicros = result.compressedBytes * nanosPerByte / 1_000
+                + result.cpuNanos / 1_000.0;
+
+            System.out.printf(
+                "%8d %10.1f %7.2fx %14.2f %14.2f %14.2f%n",
+                size, result.compressedBytes, size / result.compressedBytes,
+                result.cpuNanos / 1_000.0, rawMicros, deflateMicros
+            );
+
+            if (breakEven < 0 && deflateMicros < rawMicros) breakEven = size;
+        }
+
+        System.out.println();
+        if (breakEven < 0) {
+            System.out.println(
+                "Compression never paid for itself at this link speed."
+            );
+        } else {
+            System.out.println(
+                "Compression pays for itself from about " + breakEven +
+                " bytes (see --compression-threshold)."
+            );
+        }
+    }
+
+    /** The average cost of compressing one message of a given size. */
+    private record Result(double compressedBytes, double cpuNanos) {}
+
+    /**
+     * Compresses and decompresses the given number of messages of the given
+     * size on one connection's compressor, and returns the average
+     * compressed size and CPU time per message.
+     */
+    private static Result measure(int size, int messages) {
+        var random = new Random(size);
+        var payloads = new byte[messages][];
+        for (var i = 0; i < messages; i++) payloads[i] = message(random, size);
+
+        // A threshold of 0 compresses every message, however small.
+        var sender = new FrameCompressor(0);
+        var receiver = new FrameCompressor(0);
+        var threads = ManagementFactory.getThreadMXBean();
+        var compressedBytes = 0L;
+
+        var start = threads.getCurrentThreadCpuTime();
+        try {
+            for (var payload : payloads) {
+                var compressed = sender.compress(ByteBuffer.wrap(payload));
+                compressedBytes += compressed.remaining();
+
+                if (receiver.decompress(compressed).remaining() != size) {
+                    throw new IllegalStateException(
+                        "A message didn't decompress to its original size."
+                    );
+                }
+            }
+        } catch (ProtocolException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            sender.end();
+            receiver.end();
+        }
+        var cpuNanos = threads.getCurrentThreadCpuTime() - start;
+
+        return new Result(
+            compressedBytes / (double) messages,
+            cpuNanos / (double) messages
+        );
+    }
+
+    /**
+     * Builds a message of exactly the given size from random words and
+     * numbers, similar to the log lines or API calls a client might send.
+     */
+    private static byte[] message(Random random, int size) {
+        var text = new StringBuilder(size + 32);
+        while (text.length() < size) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            if (random.nextInt(4) == 0) text.append(random.nextInt(1000));
+            text.append(' ');
+        }
+
+        text.setLength(size);
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,164 @@
+package com.samjakob.sockets_example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A runnable benchmark that measures how many new connections per second
+ * each server engine can handle.
+ *
+ * For each engine being compared, it starts the server in a separate
+ * process, then has a number of client threads repeatedly connect, exchange
+ * a single message and disconnect for a fixed amount of time.
+ *
+ * Usage: {@code ConnectionRateBenchmark [--clients=N] [--seconds=N]
+ * [--modes=threads,reuseport]}. Any other options (e.g., {@code --loops=N})
+ * are passed on to the server.
+ */
+public class ConnectionRateBenchmark {
+
+    /** The message each connection sends. */
+    private static final byte[] HELLO =
+        "hello".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        var clients = 16;
+        var seconds = 5;
+        var modes = List.of("threads", "reuseport");
+        var serverArgs = new ArrayList<String>();
+
+        for (var arg : args) {
+            if (arg.startsWith("--clients=")) {
+                clients = ServerConfig.parsePositive(
+                    "clients", arg.substring("--clients=".length())
+                );
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = ServerConfig.parsePositive(
+                    "seconds", arg.substring("--seconds=".length())
+                );
+            } else if (arg.startsWith("--modes=")) {
+                modes = List.of(
+                    arg.substring("--modes=".length()).split(",")
+                );
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+
+        for (var mode : modes) {
+            var server = startServer(mode, serverArgs);
+
+            try {
+                var rate = measure(clients, seconds);
+                System.out.printf(
+                    "%-10s %,12.0f connections/s%n", mode, rate
+                );
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    /**
+     * Starts the server in a new process with the given mode, and waits for
+     * it to start accepting connections.
+     */
+    private static Process startServer(String mode, List<String> serverArgs)
+        throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MyServer.class.getName());
+        command.add("--mode=" + mode);
+        command.addAll(serverArgs);
+
+        // The server logs every connection, which we don't want to measure
+        // (or see), so its output is discarded.
+        var server = new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+
+        for (var attempt = 0; attempt < 100; attempt++) {
+            try (var socket = new Socket()) {
+                socket.connect(new InetSocketAddress(
+                    "localhost", ScuffedProtocol.PORT
+                ));
+                return server;
+            } catch (IOException ex) {
+                if (!server.isAlive()) break;
+                Thread.sleep(100);
+            }
+        }
+
+        server.destroy();
+        throw new IOException("The server (--mode=" + mode + ") didn't start.");
+    }
+
+    /**
+     * Has the given number of client threads open connections as fast as
+     * they can for the given number of seconds, and returns the number of
+     * connections completed per second.
+     */
+    private static double measure(int clients, int seconds)
+        throws InterruptedException {
+        var completed = new LongAdder();
+        var deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        var threads = new Thread[clients];
+
+        for (var i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    try {
+                        connectOnce();
+                        completed.increment();
+                    } catch (IOException ex) {
+                        // Count only successful connections.
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (var thread : threads) thread.join();
+        return completed.sum() / (double) seconds;
+    }
+
+    /**
+     * Connects to the server, exchanges one message and then disconnects.
+     */
+    private static void connectOnce() throws IOException {
+        try (var socket = new Socket()) {
+            // Reset the connection when it is closed, rather than leaving it
+            // in TIME_WAIT, so that we don't run out of local ports.
+            socket.setSoLinger(true, 0);
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(
+                "localhost", ScuffedProtocol.PORT
+            ));
+
+            var inputStream = new BufferedInputStream(socket.getInputStream());
+            var outputStream = new BufferedOutputStream(socket.getOutputStream());
+
+            ScuffedProtocol.writeFrame(
+                outputStream, ScuffedProtocol.DATA,
+                ScuffedProtocol.NO_CORRELATION_ID, HELLO, 0, HELLO.length
+            );
+            outputStream.flush();
+            ScuffedProtocol.readFrame(inputStream, new ScuffedProtocol.Frame());
+
+            ScuffedProtocol.writeFrame(outputStream, ScuffedProtocol.EXIT);
+            outputStream.flush();
+        }
+    }
+
+}
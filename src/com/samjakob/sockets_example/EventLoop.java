@@ -0,0 +1,395 @@
+package com.samjakob.sockets_example;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * An event loop is a single thread that waits on a {@link Selector} for any
+ * of its channels to become ready (e.g., a client connecting, or a client
+ * sending some data) and then handles whatever is ready.
+ *
+ * Unlike {@link MyServerDelegate}, which needs one thread per connection,
+ * one event loop can serve thousands of connections because it never blocks
+ * waiting on any particular one of them.
+ *
+ * Other threads must not touch the loop's channels directly. Instead, they
+ * hand it work with {@link #execute(Runnable)} (or {@link #register}), which
+ * the loop runs on its own thread between selections.
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * The selector that tells us which of our channels are ready.
+     */
+    private final Selector selector;
+
+    /**
+     * The thread that runs this event loop.
+     */
+    private final Thread thread;
+
+    /**
+     * The options the server was started with, which are passed on to each
+     * connection.
+     */
+    private final ServerConfig config;
+
+    /**
+     * Work handed to this loop by other threads, waiting to be run on the
+     * loop's own thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of tasks in {@link #tasks}, kept separately because
+     * counting the elements of a {@link ConcurrentLinkedQueue} means walking
+     * the whole queue.
+     */
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+
+    /**
+     * The number of connections assigned to this loop that have not yet
+     * been closed.
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * The total capacity (in bytes) of the read buffers currently held by
+     * this loop's connections. Only the loop's thread changes this, but
+     * other threads read it for the metrics.
+     */
+    private final AtomicLong receiveBufferBytes = new AtomicLong();
+
+    /**
+     * Set once the selector has been woken up (or is about to be), until
+     * the loop gets around to running its tasks. Whilst this is set, newly
+     * queued tasks don't wake the selector again, so a burst of tasks costs
+     * a single wakeup.
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    /**
+     * The number of times the selector has been woken up to run tasks.
+     */
+    private final AtomicLong wakeups = new AtomicLong();
+
+    /**
+     * The timeouts of this loop's connections (e.g., for heartbeats), which
+     * the loop runs between selections.
+     */
+    private final TimingWheel timers;
+
+    /**
+     * Creates a new event loop. The loop does not do anything until
+     * {@link #start()} is called.
+     *
+     * @param name The name given to the event loop's thread.
+     * @param config The server configuration.
+     * @throws IOException If the selector could not be opened.
+     */
+    EventLoop(String name, ServerConfig config) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.config = config;
+
+        // 512 slots of 10 milliseconds each make one turn of the wheel about
+        // five seconds, so most timeouts are less than a turn away.
+        this.timers = new TimingWheel(
+            config.timerResolutionMillis * 1_000_000L, 512
+        );
+    }
+
+    /**
+     * Registers a listening server channel with this event loop, so that
+     * this loop will accept connections from it and serve them itself.
+     *
+     * @see #registerAcceptor(ServerSocketChannel, Consumer)
+     */
+    void registerAcceptor(ServerSocketChannel serverChannel) throws IOException {
+        registerAcceptor(serverChannel, this::register);
+    }
+
+    /**
+     * Registers a listening server channel with this event loop, so that
+     * this loop will accept connections from it and pass each one to the
+     * given handler.
+     *
+     * This must be called before {@link #start()}, as registering a channel
+     * with a selector that is already selecting would block until the
+     * selection finishes.
+     *
+     * @param serverChannel The (non-blocking) server channel.
+     * @param onAccepted Called on this loop's thread with every accepted
+     *                   connection.
+     * @throws IOException If the channel could not be registered.
+     */
+    void registerAcceptor(
+        ServerSocketChannel serverChannel,
+        Consumer<SocketChannel> onAccepted
+    ) throws IOException {
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT, onAccepted);
+    }
+
+    /**
+     * Assigns a newly accepted connection to this event loop. This may be
+     * called from any thread.
+     *
+     * @param channel The accepted connection.
+     */
+    void register(SocketChannel channel) {
+        connections.incrementAndGet();
+
+        if (Thread.currentThread() == thread) {
+            registerNow(channel);
+        } else {
+            execute(() -> registerNow(channel));
+        }
+    }
+
+    /**
+     * Runs the given task on this event loop's thread. This may be called
+     * from any thread.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        queuedTasks.incrementAndGet();
+
+        // Wake the loop up in case it is waiting in select, as otherwise the
+        // task wouldn't run until one of its channels became ready. If
+        // someone else has already woken it and it hasn't run the tasks
+        // yet, it will run this one too, so there's no need to.
+        if (wakeupPending.compareAndSet(false, true)) {
+            wakeups.incrementAndGet();
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the given task on this event loop's thread after (at least) the
+     * given delay. This must be called on the loop's own thread.
+     *
+     * @param delayNanos The delay, in nanoseconds.
+     * @param task The task to run.
+     * @return The timeout, which can be used to cancel the task.
+     */
+    TimingWheel.Timeout schedule(long delayNanos, Runnable task) {
+        return timers.schedule(delayNanos, task);
+    }
+
+    /** Returns the name of this event loop's thread. */
+    String name() {
+        return thread.getName();
+    }
+
+    /** Returns the number of connections currently served by this loop. */
+    int connectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Returns the total capacity (in bytes) of the read buffers held by
+     * this loop's connections.
+     */
+    long receiveBufferBytes() {
+        return receiveBufferBytes.get();
+    }
+
+    /**
+     * Called by a {@link NioConnection} of this loop when it leases a read
+     * buffer of the given capacity.
+     */
+    void receiveBufferLeased(int capacity) {
+        receiveBufferBytes.addAndGet(capacity);
+    }
+
+    /**
+     * Called by a {@link NioConnection} of this loop when it gives back a
+     * read buffer of the given capacity.
+     */
+    void receiveBufferReleased(int capacity) {
+        receiveBufferBytes.addAndGet(-capacity);
+    }
+
+    /**
+     * Returns the number of times the loop has been woken up to run tasks.
+     */
+    long wakeups() {
+        return wakeups.get();
+    }
+
+    /** Returns the number of tasks waiting to be run by this loop. */
+    int queueDepth() {
+        return queuedTasks.get();
+    }
+
+    /** Starts the event loop's thread. */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the event loop, closing every channel registered with it.
+     */
+    void shutdown() {
+        thread.interrupt();
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!thread.isInterrupted()) {
+            try {
+                // Block until at least one of our channels is ready, or
+                // another thread wakes us up to run a task. This uses no CPU
+                // whilst every connection is idle.
+                //
+                // If any timeouts are scheduled, we also wake up for the
+                // timing wheel's next tick.
+                var waitNanos = timers.nanosUntilNextTick(System.nanoTime());
+                if (waitNanos < 0) {
+                    selector.select();
+                } else if (waitNanos == 0) {
+                    selector.selectNow();
+                } else {
+                    // Round up, so that we don't wake up just before the
+                    // tick and then have to go around again.
+                    selector.select((waitNanos + 999_999) / 1_000_000);
+                }
+            } catch (IOException ex) {
+                System.err.println("The event loop failed to select.");
+                ex.printStackTrace();
+                break;
+            }
+
+            var keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                var key = keys.next();
+                keys.remove();
+
+                try {
+                    if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+
+                    var connection = (NioConnection) key.attachment();
+                    if (key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                } catch (CancelledKeyException ignored) {
+                    // The connection was closed whilst we were handling it.
+                }
+            }
+
+            runTasks();
+            timers.advance(System.nanoTime());
+        }
+
+        // Close everything that is still registered with us.
+        for (var key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.close();
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // We're shutting down anyway.
+        }
+    }
+
+    /**
+     * Runs every task that was queued before this method was called. Tasks
+     * queued whilst these are running are left for the next iteration, so
+     * that a steady stream of tasks can't starve the channels.
+     */
+    private void runTasks() {
+        // Anything queued from here on needs a wakeup of its own (or, if it
+        // is queued before the tasks below have been counted, is run
+        // anyway). This must be cleared before the count is taken, so that
+        // no task can slip through without either.
+        wakeupPending.set(false);
+
+        for (var remaining = queuedTasks.get(); remaining > 0; remaining--) {
+            var task = tasks.poll();
+            if (task == null) break;
+            queuedTasks.decrementAndGet();
+
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                System.err.println("A task failed on " + name() + ".");
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection from the server channel of the given key
+     * and passes it to that channel's handler.
+     */
+    @SuppressWarnings("unchecked")
+    private void accept(SelectionKey key) {
+        var serverChannel = (ServerSocketChannel) key.channel();
+        var onAccepted = (Consumer<SocketChannel>) key.attachment();
+        SocketChannel channel;
+
+        try {
+            // When more than one event loop is registered with the same
+            // server channel, they will all be woken up by a new connection
+            // but only one of them will get it – the others get null.
+            channel = serverChannel.accept();
+            if (channel == null) return;
+        } catch (IOException ex) {
+            System.err.println(
+                "Failed to accept a socket connection. " +
+                "Is there a problem with the client?"
+            );
+            return;
+        }
+
+        onAccepted.accept(channel);
+    }
+
+    /**
+     * Registers the given connection with this loop's selector. This must
+     * be called on the loop's own thread.
+     */
+    private void registerNow(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            var key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new NioConnection(this, channel, key, config));
+        } catch (IOException ex) {
+            System.err.println("Failed to register a socket connection.");
+            ex.printStackTrace();
+            connections.decrementAndGet();
+
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing more we can do for this channel.
+            }
+        }
+    }
+
+    /**
+     * Called by a {@link NioConnection} of this loop once it has closed.
+     */
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.samjakob.sockets_example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the frames sent on a connection, and decompresses the frames
+ * received on it, once both sides have agreed to use compression with a
+ * {@link ScuffedProtocol#HELLO} handshake.
+ *
+ * Each connection gets its own compressor, which keeps a single
+ * {@link Deflater} (and {@link Inflater}) running for as long as the
+ * connection is open. Every frame is 'sync flushed' so that it can be
+ * decompressed as soon as it arrives, but the compression dictionary
+ * carries over from one frame to the next. This means a message that
+ * repeats text from earlier messages compresses far better than it would
+ * on its own.
+ *
+ * Frames smaller than the threshold are sent as they are, because the
+ * compression header and the CPU time aren't worth it for them.
+ *
+ * Frames have to be compressed in the order they are sent, and
+ * decompressed in the order they are received. Compressing and
+ * decompressing use separate streams, so one thread may compress whilst
+ * another decompresses (as {@link MyServerDelegate} does when it handles
+ * messages in parallel), but each direction must only ever be used by one
+ * thread at a time.
+ */
+final class FrameCompressor {
+
+    /**
+     * The 'feature' bit in a {@link ScuffedProtocol#HELLO} payload that
+     * asks for (or agrees to) deflate compression.
+     */
+    static final byte DEFLATE = 0x01;
+
+    /**
+     * The default size (in bytes) a payload must be before it is
+     * compressed.
+     */
+    static final int DEFAULT_THRESHOLD = 256;
+
+    private final Deflater deflater =
+        new Deflater(Deflater.BEST_SPEED, true);
+
+    private final Inflater inflater = new Inflater(true);
+
+    /**
+     * The size a payload must be before it is compressed.
+     */
+    private final int threshold;
+
+    /**
+     * @param threshold The size (in bytes) a payload must be before it is
+     *                  compressed.
+     */
+    FrameCompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns whether a payload of the given length should be compressed.
+     */
+    boolean shouldCompress(int length) {
+        return length >= threshold;
+    }
+
+    /**
+     * Compresses the given payload.
+     *
+     * @param payload The payload to compress, from its position to its
+     *                limit. Its position is moved to its limit.
+     * @return A new buffer holding the compressed payload, flipped for
+     *         reading.
+     */
+    ByteBuffer compress(ByteBuffer payload) {
+        deflater.setInput(payload);
+
+        // Compressed data is almost never more than a little larger than
+        // the original, so this is usually big enough the first time.
+        var out = ByteBuffer.allocate(payload.remaining() + 64);
+
+        while (true) {
+            deflater.deflate(out, Deflater.SYNC_FLUSH);
+
+            // If the deflater didn't fill the buffer, it has written
+            // everything. Otherwise, there may be more to come.
+            if (out.hasRemaining()) break;
+            out = grow(out);
+        }
+
+        return out.flip();
+    }
+
+    /**
+     * Decompresses the given payload.
+     *
+     * @param payload The compressed payload, from its position to its
+     *                limit. Its position is moved to its limit.
+     * @return A new buffer holding the decompressed payload, flipped for
+     *         reading.
+     * @throws ProtocolException If the payload isn't valid compressed data,
+     *                           or decompresses to more than
+     *                           {@link ScuffedProtocol#MAX_PAYLOAD_LENGTH}.
+     */
+    ByteBuffer decompress(ByteBuffer payload) throws ProtocolException {
+        inflater.setInput(payload);
+        var out = ByteBuffer.allocate(Math.max(256, payload.remaining() * 4));
+
+        try {
+            while (true) {
+                inflater.inflate(out);
+
+                // Once all the input is used up and there was still room
+                // left in the buffer, we have the whole payload.
+                if (inflater.needsInput() && out.hasRemaining()) break;
+
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    throw new ProtocolException(
+                        "The compressed stream ended unexpectedly."
+                    );
+                }
+
+                if (!out.hasRemaining()) {
+                    if (out.capacity() > ScuffedProtocol.MAX_PAYLOAD_LENGTH) {
+                        throw new ProtocolException(
+                            "A compressed payload is larger than " +
+                            ScuffedProtocol.MAX_PAYLOAD_LENGTH + " bytes."
+                        );
+                    }
+                    out = grow(out);
+                }
+            }
+        } catch (DataFormatException ex) {
+            var failure = new ProtocolException(
+                "A compressed payload is invalid."
+            );
+            failure.initCause(ex);
+            throw failure;
+        }
+
+        if (out.position() > ScuffedProtocol.MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException(
+                "A compressed payload is larger than " +
+                ScuffedProtocol.MAX_PAYLOAD_LENGTH + " bytes."
+            );
+        }
+
+        return out.flip();
+    }
+
+    /**
+     * Returns the payload of the given frame, decompressing it first if it
+     * is compressed.
+     *
+     * @param frame The received frame.
+     * @param compressor The connection's compressor, or null if compression
+     *                   was not agreed to.
+     * @throws ProtocolException If the frame is compressed but compression
+     *                           was not agreed to (or isn't allowed for that
+     *                           kind of frame), or the payload is invalid.
+     */
+    static ByteBuffer payloadOf(
+        ScuffedProtocol.Frame frame,
+        FrameCompressor compressor
+    ) throws ProtocolException {
+        if (!frame.compressed) return frame.payload;
+
+        if (compressor == null || frame.opcode != ScuffedProtocol.DATA) {
+            throw new ProtocolException(
+                "Received a compressed frame without agreeing to compression."
+            );
+        }
+
+        return compressor.decompress(frame.payload);
+    }
+
+    /**
+     * Works out which of the features asked for in a client's
+     * {@link ScuffedProtocol#HELLO} the server agrees to.
+     *
+     * @param hello The payload of the client's HELLO frame.
+     * @param allowCompression Whether the server allows compression.
+     * @return The feature bits to send back in the server's HELLO frame.
+     */
+    static byte acceptedFeatures(ByteBuffer hello, boolean allowCompression) {
+        var requested = hello.hasRemaining() ? hello.get(hello.position()) : 0;
+        return (byte) (allowCompression ? requested & DEFLATE : 0);
+    }
+
+    /**
+     * Releases the native memory held by the compressor. It can't be used
+     * after this.
+     */
+    void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        var larger = ByteBuffer.allocate(buffer.capacity() * 2);
+        return larger.put(buffer.flip());
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.samjakob.sockets_example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Builds the chain of {@link MessageHandler}s that a port's messages pass
+ * through, and passes messages through it.
+ *
+ * A pipeline is named by a comma-separated list of handler names, e.g.,
+ * {@code unzip,upper-case} (if {@code unzip} were a handler of your own).
+ * Each message goes through every handler's decode stage (in order), then
+ * every filter, then every transform and finally every encode stage in
+ * reverse order, so the first handler's encoding is the outermost, just as
+ * its decoding was the first undone.
+ *
+ * The handlers are looked up, and the pipeline put together, once, when the
+ * server starts, rather than each message looping over a list of handlers.
+ * A pipeline of one handler is simply that handler, so with the default
+ * pipeline the server's calls to it only ever see one class, which the JIT
+ * compiler can inline just as it could the upper-casing when that was
+ * written into the server. A longer pipeline is a nest of pairs, each of
+ * which calls its own two handlers directly.
+ *
+ * Besides the handlers found by {@link ServiceLoader}, there are two that
+ * are always available: {@code upper-case} ({@link UpperCaseHandler}) and
+ * {@code echo}, which replies with the message unchanged.
+ */
+final class HandlerPipeline {
+
+    private HandlerPipeline() {}
+
+    /** The reply to a message that a filter dropped. */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** The handler that leaves everything as it is. */
+    private static final class Echo implements MessageHandler {
+        @Override
+        public String name() {
+            return "echo";
+        }
+    }
+
+    /**
+     * Two handlers, one after the other, in every stage.
+     */
+    private static final class Chained implements MessageHandler {
+        private final MessageHandler first;
+        private final MessageHandler second;
+
+        Chained(MessageHandler first, MessageHandler second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public String name() {
+            return first.name() + "," + second.name();
+        }
+
+        @Override
+        public Execution execution() {
+            var a = first.execution();
+            var b = second.execution();
+            return a.compareTo(b) >= 0 ? a : b;
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer payload) {
+            return second.decode(first.decode(payload));
+        }
+
+        @Override
+        public boolean filter(ByteBuffer message) {
+            return first.filter(message) && second.filter(message);
+        }
+
+        @Override
+        public ByteBuffer transform(ByteBuffer message) {
+            return second.transform(first.transform(message));
+        }
+
+        @Override
+        public ByteBuffer encode(ByteBuffer reply) {
+            return first.encode(second.encode(reply));
+        }
+    }
+
+    /**
+     * Holds every handler that can be named, which are only looked up the
+     * first time they are needed.
+     */
+    private static final class Available {
+        private static final Map<String, MessageHandler> HANDLERS = load();
+
+        private static Map<String, MessageHandler> load() {
+            var handlers = new LinkedHashMap<String, MessageHandler>();
+            for (var handler : List.of(new UpperCaseHandler(), new Echo())) {
+                handlers.put(handler.name(), handler);
+            }
+
+            try {
+                for (var handler : ServiceLoader.load(MessageHandler.class)) {
+                    // The built-in handlers can't be replaced, so that the
+                    // default pipeline always means the same thing.
+                    handlers.putIfAbsent(handler.name(), handler);
+                }
+            } catch (ServiceConfigurationError ex) {
+                System.err.println("Failed to load the message handlers.");
+                ex.printStackTrace();
+            }
+
+            return handlers;
+        }
+    }
+
+    /**
+     * Returns the default pipeline, which upper-cases every message.
+     */
+    static MessageHandler defaultPipeline() {
+        return Available.HANDLERS.get("upper-case");
+    }
+
+    /**
+     * Builds the pipeline named by a comma-separated list of handler names.
+     *
+     * @param names The handler names, e.g., {@code upper-case}.
+     * @return The pipeline.
+     * @throws IllegalArgumentException If a handler can't be found.
+     */
+    static MessageHandler parse(String names) {
+        var handlers = new ArrayList<MessageHandler>();
+        for (var name : names.split(",")) {
+            var handler = Available.HANDLERS.get(name.trim());
+            if (handler == null) {
+                throw new IllegalArgumentException(
+                    "Unknown message handler: '" + name.trim() + "' " +
+                    "(available: " +
+                    String.join(", ", Available.HANDLERS.keySet()) + ")"
+                );
+            }
+            handlers.add(handler);
+        }
+
+        return compose(handlers);
+    }
+
+    /**
+     * Chains the given handlers together into one.
+     *
+     * @param handlers The handlers, in order. There must be at least one.
+     */
+    static MessageHandler compose(List<MessageHandler> handlers) {
+        var pipeline = handlers.get(handlers.size() - 1);
+        for (var i = handlers.size() - 2; i >= 0; i--) {
+            pipeline = new Chained(handlers.get(i), pipeline);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Passes a received payload through every stage of a pipeline.
+     *
+     * @param pipeline The pipeline.
+     * @param payload The payload, from its position to its limit.
+     * @return The payload to reply with, from its position to its limit.
+     *         This may be {@code payload} itself, changed in place.
+     */
+    static ByteBuffer handle(MessageHandler pipeline, ByteBuffer payload) {
+        var message = pipeline.decode(payload);
+        if (!pipeline.filter(message)) return EMPTY.duplicate();
+
+        return pipeline.encode(pipeline.transform(message));
+    }
+
+}
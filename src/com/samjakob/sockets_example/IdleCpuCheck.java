@@ -0,0 +1,114 @@
+package com.samjakob.sockets_example;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * A runnable check that an idle server doesn't use any CPU.
+ *
+ * It starts the server in this process, opens a number of connections that
+ * never send anything, and then measures how much CPU time the whole process
+ * uses over a few seconds. A server that polls its sockets in a loop would
+ * use a full core per connection here, whereas one that blocks (or waits on
+ * a selector) should use almost nothing.
+ *
+ * Any options other than {@code --connections=N} are passed on to the
+ * server, e.g., {@code IdleCpuCheck --connections=500 --mode=nio}.
+ *
+ * The process exits with status 1 if the server used more than
+ * {@link #MAX_CPU_PERCENT} of one core.
+ */
+public class IdleCpuCheck {
+
+    /** How long to leave the connections idle before measuring. */
+    private static final long SETTLE_MILLIS = 1000;
+
+    /** How long to measure the CPU usage for. */
+    private static final long MEASURE_MILLIS = 5000;
+
+    /** The most CPU (as a percentage of one core) an idle server may use. */
+    private static final double MAX_CPU_PERCENT = 5.0;
+
+    public static void main(String[] args) throws Exception {
+        var connectionCount = 100;
+        var serverArgs = new ArrayList<String>();
+
+        for (var arg : args) {
+            if (arg.startsWith("--connections=")) {
+                connectionCount = ServerConfig.parsePositive(
+                    "connections",
+                    arg.substring("--connections=".length())
+                );
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+
+        var config = ServerConfig.parse(serverArgs.toArray(new String[0]));
+
+        // Start the server on a daemon thread, as some engines block the
+        // thread that starts them for as long as the server is running.
+        var serverThread = new Thread(() -> MyServer.startEngine(config));
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        var sockets = new Socket[connectionCount];
+        for (var i = 0; i < sockets.length; i++) {
+            sockets[i] = connect();
+        }
+
+        Thread.sleep(SETTLE_MILLIS);
+
+        var os = (com.sun.management.OperatingSystemMXBean)
+            ManagementFactory.getOperatingSystemMXBean();
+
+        var startCpu = os.getProcessCpuTime();
+        var startTime = System.nanoTime();
+        Thread.sleep(MEASURE_MILLIS);
+        var cpu = os.getProcessCpuTime() - startCpu;
+        var elapsed = System.nanoTime() - startTime;
+
+        var cpuPercent = 100.0 * cpu / elapsed;
+        System.out.printf(
+            "%d idle connection(s) in %s mode used %.2f%% of one core.%n",
+            connectionCount, config.mode, cpuPercent
+        );
+
+        for (var socket : sockets) socket.close();
+
+        if (cpuPercent > MAX_CPU_PERCENT) {
+            System.err.println(
+                "FAILED: an idle server should use less than " +
+                MAX_CPU_PERCENT + "% of one core."
+            );
+            System.exit(1);
+        }
+
+        System.out.println("PASSED");
+        System.exit(0);
+    }
+
+    /**
+     * Connects to the server, retrying for a short while in case it hasn't
+     * finished starting yet.
+     */
+    private static Socket connect() throws IOException, InterruptedException {
+        for (var attempt = 0; ; attempt++) {
+            try {
+                var socket = new Socket();
+                socket.connect(new InetSocketAddress(
+                    "localhost",
+                    ScuffedProtocol.PORT
+                ));
+                return socket;
+            } catch (IOException ex) {
+                if (attempt == 50) throw ex;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+}
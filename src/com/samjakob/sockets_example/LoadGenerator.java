@@ -0,0 +1,373 @@
+package com.samjakob.sockets_example;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A runnable tool that puts a running server under a steady load and
+ * measures how quickly it replies.
+ *
+ * It opens a number of {@link ScuffedClient} connections and sends requests
+ * over them at a fixed rate, whether or not the earlier requests have been
+ * answered (an 'open loop'). A tool that instead waits for each reply before
+ * sending the next request (a 'closed loop') slows down whenever the server
+ * does, so it sends fewer requests during exactly the moments that would
+ * have shown how slow the server had become. This is known as 'coordinated
+ * omission', and it can make a server that stalls for a whole second look
+ * as though only one request was slow.
+ *
+ * To avoid it, each request's latency is measured from the time it was
+ * supposed to be sent, according to the schedule, rather than the time it
+ * actually was: if the tool itself falls behind (or the connection is
+ * backed up), that delay is part of what a real client would have seen.
+ * The latency measured from when each request was actually sent is
+ * reported too, to show how much of a difference this makes.
+ *
+ * The results are printed and also saved, one value per line, to a file
+ * that can be diffed against the results of another run, or given to a
+ * later run with {@code --baseline} to print the change in each value.
+ *
+ * Usage: {@code LoadGenerator [--option=value ...]}; run it with
+ * {@code --help} for the options.
+ */
+public class LoadGenerator {
+
+    /** The percentiles that are reported, as fractions. */
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999, 0.9999 };
+
+    /**
+     * How long to wait, once every request has been sent, for the replies
+     * still outstanding.
+     */
+    private static final long DRAIN_SECONDS = 10;
+
+    private String host = "localhost";
+    private int port = ScuffedProtocol.PORT;
+    private int connections = 16;
+    private int rate = 10_000;
+    private int seconds = 10;
+    private int warmupSeconds = 2;
+    private int messageSize = 64;
+    private int loops = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private Path output = Path.of("load-results.txt");
+    private Path baseline;
+
+    /** Latency from when each request should have been sent. */
+    private final LogHistogram latencyMicros = new LogHistogram();
+
+    /** Latency from when each request actually was sent. */
+    private final LogHistogram serviceTimeMicros = new LogHistogram();
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        var generator = new LoadGenerator();
+
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(usage());
+            System.exit(1);
+        }
+
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for (var arg : args) {
+            if (arg.equals("--help")) throw new IllegalArgumentException("");
+
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException(
+                    "Expected an argument of the form --option=value but " +
+                    "got: " + arg
+                );
+            }
+
+            var name = arg.substring(2, separator);
+            var value = arg.substring(separator + 1);
+
+            switch (name) {
+                case "host" -> host = value;
+                case "port" -> port = ServerConfig.parsePositive(name, value);
+                case "connections" ->
+                    connections = ServerConfig.parsePositive(name, value);
+                case "rate" -> rate = ServerConfig.parsePositive(name, value);
+                case "seconds" ->
+                    seconds = ServerConfig.parsePositive(name, value);
+                case "warmup" ->
+                    warmupSeconds = ServerConfig.parseNonNegative(name, value);
+                case "size" ->
+                    messageSize = ServerConfig.parsePositive(name, value);
+                case "loops" -> loops = ServerConfig.parsePositive(name, value);
+                case "output" -> output = Path.of(value);
+                case "baseline" -> baseline = Path.of(value);
+                default -> throw new IllegalArgumentException(
+                    "Unknown option: --" + name
+                );
+            }
+        }
+    }
+
+    private static String usage() {
+        return String.join("\n",
+            "Usage: LoadGenerator [--option=value ...]",
+            "  --host=HOST          the server's host (default: localhost)",
+            "  --port=PORT          the server's port (default: " +
+                ScuffedProtocol.PORT + ")",
+            "  --connections=N      the number of connections (default: 16)",
+            "  --rate=N             requests per second, across every",
+            "                       connection (default: 10000)",
+            "  --seconds=N          how long to measure for (default: 10)",
+            "  --warmup=N           seconds of load before measuring starts",
+            "                       (default: 2)",
+            "  --size=BYTES         the size of each message (default: 64)",
+            "  --loops=N            the number of client I/O threads",
+            "                       (default: up to 4)",
+            "  --output=FILE        where to save the results",
+            "                       (default: load-results.txt)",
+            "  --baseline=FILE      the results of an earlier run to compare",
+            "                       against"
+        );
+    }
+
+    private void run() throws IOException, InterruptedException {
+        var address = new InetSocketAddress(host, port);
+        var message = "x".repeat(messageSize);
+        var expectedReply = message.toUpperCase();
+
+        var eventLoops = new ArrayList<ClientEventLoop>(loops);
+        for (var i = 0; i < loops; i++) {
+            eventLoops.add(new ClientEventLoop("load-generator-io-" + i));
+        }
+
+        var clients = new ArrayList<ScuffedClient>(connections);
+        for (var i = 0; i < connections; i++) {
+            clients.add(new ScuffedClient(address, eventLoops.get(i % loops)));
+        }
+
+        System.out.printf(
+            "Sending %,d requests/s of %,d bytes over %,d connections to %s " +
+            "for %ds (after %ds of warm-up)...%n",
+            rate, messageSize, connections, address, seconds, warmupSeconds
+        );
+
+        var intervalNanos = TimeUnit.SECONDS.toNanos(1) / (double) rate;
+        var totalRequests = (long) rate * (warmupSeconds + seconds);
+        var warmupRequests = (long) rate * warmupSeconds;
+        var startNanos = System.nanoTime();
+        var measureStartNanos =
+            startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+
+        for (var i = 0L; i < totalRequests; i++) {
+            var intendedNanos = startNanos + (long) (i * intervalNanos);
+
+            // Wait until this request is due. If we're behind, don't wait:
+            // send it (and the others that are overdue) straight away, so
+            // the rate is kept up on average.
+            long now;
+            while ((now = System.nanoTime()) < intendedNanos) {
+                LockSupport.parkNanos(intendedNanos - now);
+            }
+
+            var measured = i >= warmupRequests;
+            var sentNanos = now;
+            clients.get((int) (i % connections)).send(message)
+                .whenComplete((reply, failure) -> {
+                    if (!measured) return;
+
+                    if (failure != null || !expectedReply.equals(reply)) {
+                        errors.incrementAndGet();
+                        return;
+                    }
+
+                    var doneNanos = System.nanoTime();
+                    latencyMicros.record((doneNanos - intendedNanos) / 1_000);
+                    serviceTimeMicros.record((doneNanos - sentNanos) / 1_000);
+                    completed.incrementAndGet();
+                });
+        }
+
+        var sendingEndNanos = System.nanoTime();
+        var measuredRequests = totalRequests - warmupRequests;
+        var drainDeadline =
+            sendingEndNanos + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while (completed.get() + errors.get() < measuredRequests
+            && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+
+        var elapsedSeconds = (sendingEndNanos - measureStartNanos) / 1e9;
+        var unanswered = measuredRequests - completed.get() - errors.get();
+
+        for (var client : clients) client.close();
+        for (var loop : eventLoops) loop.close();
+
+        var results = results(measuredRequests, unanswered, elapsedSeconds);
+        print(results);
+        save(results);
+        if (baseline != null) compare(results, load(baseline));
+    }
+
+    /**
+     * Collects the settings and results in the order they are printed and
+     * saved. Keeping them in a fixed order (rather than, say, the order of a
+     * {@link Properties}) means two result files can be diffed line by line.
+     */
+    private Map<String, String> results(
+        long measuredRequests,
+        long unanswered,
+        double elapsedSeconds
+    ) {
+        var results = new LinkedHashMap<String, String>();
+        results.put("connections", Integer.toString(connections));
+        results.put("target.rate", Integer.toString(rate));
+        results.put("seconds", Integer.toString(seconds));
+        results.put("message.size", Integer.toString(messageSize));
+        results.put("requests", Long.toString(measuredRequests));
+        results.put("completed", Long.toString(completed.get()));
+        results.put("errors", Long.toString(errors.get()));
+        results.put("unanswered", Long.toString(unanswered));
+        results.put(
+            "throughput",
+            String.format(Locale.ROOT, "%.1f", completed.get() / elapsedSeconds)
+        );
+
+        addPercentiles(results, "latency", latencyMicros);
+        addPercentiles(results, "service.time", serviceTimeMicros);
+        return results;
+    }
+
+    private static void addPercentiles(
+        Map<String, String> results,
+        String name,
+        LogHistogram histogram
+    ) {
+        for (var percentile : PERCENTILES) {
+            results.put(
+                name + ".p" + percentileName(percentile) + ".us",
+                Long.toString(histogram.percentile(percentile))
+            );
+        }
+        results.put(name + ".max.us", Long.toString(histogram.max()));
+    }
+
+    /** Returns, e.g., "50" for 0.5 and "99.9" for 0.999. */
+    private static String percentileName(double percentile) {
+        var name = String.format(Locale.ROOT, "%.2f", percentile * 100);
+        return name.replaceAll("\\.?0+$", "");
+    }
+
+    private void print(Map<String, String> results) {
+        System.out.printf(
+            "%nCompleted %s of %s requests (%s errors, %s unanswered): " +
+            "%s requests/s%n%n",
+            results.get("completed"), results.get("requests"),
+            results.get("errors"), results.get("unanswered"),
+            results.get("throughput")
+        );
+
+        System.out.printf("%-10s %14s %14s%n", "", "latency", "service time");
+        for (var percentile : PERCENTILES) {
+            var suffix = ".p" + percentileName(percentile) + ".us";
+            System.out.printf(
+                "%-10s %11s us %11s us%n",
+                "p" + percentileName(percentile),
+                results.get("latency" + suffix),
+                results.get("service.time" + suffix)
+            );
+        }
+        System.out.printf(
+            "%-10s %11s us %11s us%n",
+            "max", results.get("latency.max.us"),
+            results.get("service.time.max.us")
+        );
+        System.out.println(
+            "\n(Latency is measured from when each request was due to be " +
+            "sent; service time\nfrom when it actually was.)"
+        );
+    }
+
+    private void save(Map<String, String> results) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(output)) {
+            writer.write("# LoadGenerator results\n");
+            for (var entry : results.entrySet()) {
+                writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+            }
+        }
+
+        System.out.println("\nSaved the results to " + output + ".");
+    }
+
+    private static Map<String, String> load(Path path) throws IOException {
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+
+        var values = new LinkedHashMap<String, String>();
+        for (var name : properties.stringPropertyNames()) {
+            values.put(name, properties.getProperty(name));
+        }
+        return values;
+    }
+
+    /**
+     * Prints each result next to its value in the baseline, with the change
+     * as a percentage.
+     */
+    private void compare(
+        Map<String, String> results,
+        Map<String, String> baselineResults
+    ) {
+        System.out.println("\nCompared with " + baseline + ":");
+
+        var settings = List.of("connections", "target.rate", "seconds", "message.size");
+        var differentSettings = new ArrayList<String>();
+        for (var name : settings) {
+            if (!results.get(name).equals(baselineResults.get(name))) {
+                differentSettings.add(name);
+            }
+        }
+        if (!differentSettings.isEmpty()) {
+            System.out.println(
+                "(Warning: these settings differ from the baseline's: " +
+                String.join(", ", differentSettings) + ")"
+            );
+        }
+
+        for (var entry : results.entrySet()) {
+            var old = baselineResults.get(entry.getKey());
+            if (old == null) continue;
+
+            var before = Double.parseDouble(old);
+            var after = Double.parseDouble(entry.getValue());
+            var change = before == 0
+                ? (after == 0 ? "" : "(new)")
+                : String.format("%+.1f%%", (after - before) / before * 100);
+
+            System.out.printf(
+                "%-24s %14s -> %-14s %s%n",
+                entry.getKey(), old, entry.getValue(), change
+            );
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.samjakob.sockets_example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often values (e.g., wait times in microseconds) fall into each
+ * of a set of buckets, in the same way as HdrHistogram: the values are split
+ * into ranges that double in size ([32, 63], [64, 127], [128, 255] and so
+ * on), and each range is split again into 32 equal buckets.
+ *
+ * Doubling ranges cover everything from a microsecond to centuries in under
+ * two thousand counters, and the buckets within each range mean that every
+ * value is known to within about 3% (values below 32 are counted exactly).
+ * That is precise enough to compare the 99th percentile of two benchmark
+ * runs, which a plain power-of-two histogram (which only knows each value
+ * to within a factor of two) isn't.
+ *
+ * Recording a value is thread-safe and doesn't take a lock.
+ */
+final class LogHistogram {
+
+    /**
+     * The number of bits of each value that are kept: each doubling range
+     * is split into {@code 2^SUB_BUCKET_BITS} buckets.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below {@link #SUB_BUCKET_COUNT} have a bucket each, and each
+     * range from there up to (but not including) 2^63 has
+     * {@link #SUB_BUCKET_COUNT} buckets.
+     */
+    private final AtomicLongArray buckets =
+        new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT);
+
+    /** The largest value recorded, exactly. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are counted as zero.
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(bucketOf(value));
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /** Returns the number of values recorded. */
+    long count() {
+        var count = 0L;
+        for (var i = 0; i < buckets.length(); i++) count += buckets.get(i);
+        return count;
+    }
+
+    /** Returns the largest value recorded, or 0 if nothing has been. */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns (an upper bound on) the value that the given fraction of the
+     * recorded values are at or below, e.g., 0.99 for the 99th percentile.
+     * Returns 0 if nothing has been recorded.
+     */
+    long percentile(double fraction) {
+        var count = count();
+        if (count == 0) return 0;
+
+        var target = Math.max(1, (long) Math.ceil(fraction * count));
+        var seen = 0L;
+        for (var i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= target) return Math.min(upperBoundOf(i), max());
+        }
+
+        return max();
+    }
+
+    /**
+     * Describes the non-empty buckets on one line, e.g.,
+     * {@code <=1:10 <=3:2 <=131:1}.
+     */
+    @Override
+    public String toString() {
+        var text = new StringBuilder();
+        for (var i = 0; i < buckets.length(); i++) {
+            var count = buckets.get(i);
+            if (count == 0) continue;
+
+            if (text.length() > 0) text.append(' ');
+            text.append("<=").append(upperBoundOf(i)).append(':').append(count);
+        }
+
+        return text.length() == 0 ? "(empty)" : text.toString();
+    }
+
+    /**
+     * Small values have a bucket each. Otherwise, the value's highest set
+     * bit picks its doubling range, and the {@link #SUB_BUCKET_BITS} bits
+     * below that pick the bucket within the range.
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+
+        var highestBit = 63 - Long.numberOfLeadingZeros(value);
+        var shift = highestBit - SUB_BUCKET_BITS;
+        var subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) return bucket;
+
+        var shift = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        var subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        var lowerBound = (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+        return lowerBound + ((1L << shift) - 1);
+    }
+
+}
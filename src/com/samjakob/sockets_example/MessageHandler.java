@@ -0,0 +1,125 @@
+package com.samjakob.sockets_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides what the server replies to each message (DATA frame) it is sent.
+ *
+ * The server's default handler upper-cases every message, but others can
+ * be added without changing the server: implement this interface in a
+ * public class with a public no-argument constructor, list the class in a
+ * {@code META-INF/services/com.samjakob.sockets_example.MessageHandler}
+ * file on the class path, and name it (by its {@link #name()}) in the
+ * server's {@code --pipeline} option. See {@link HandlerPipeline}.
+ *
+ * A message passes through four stages, each of which does nothing unless
+ * the handler overrides it:
+ *
+ * <ol>
+ *     <li>{@link #decode(ByteBuffer)} turns the payload as it was received
+ *     into the message (e.g., undoing an encoding the client applied);</li>
+ *     <li>{@link #filter(ByteBuffer)} decides whether the message is
+ *     handled at all;</li>
+ *     <li>{@link #transform(ByteBuffer)} turns the message into the
+ *     reply;</li>
+ *     <li>{@link #encode(ByteBuffer)} turns the reply into the payload that
+ *     is sent back.</li>
+ * </ol>
+ *
+ * A stage may change the buffer it is given in place and return it, or
+ * return a new buffer, but must not return any other view of the buffer
+ * it was given: the server copies a reply that is the buffer it received
+ * the message into (as that is about to be reused), and can only tell
+ * that it is if it is the same object.
+ *
+ * One handler serves every connection, possibly on several threads at
+ * once, so a handler must be thread-safe; keeping no state at all is
+ * simplest.
+ *
+ * The non-blocking engines run handlers on their event loops, where a slow
+ * handler holds up every other connection on the same loop. A handler that
+ * may take a while should therefore say so with {@link #execution()}, so
+ * that it is run in a {@link Bulkhead} instead.
+ */
+public interface MessageHandler {
+
+    /**
+     * Where a handler needs to be run. Each is 'heavier' than the one
+     * before, and a pipeline is as heavy as its heaviest handler.
+     */
+    enum Execution {
+        /**
+         * The handler is quick and never blocks, so it can run on the
+         * thread that received the message.
+         */
+        INLINE,
+        /**
+         * The handler spends a while computing, so it runs in the server's
+         * CPU bulkhead, which has about as many threads as there are
+         * processors.
+         */
+        CPU_HEAVY,
+        /**
+         * The handler waits for something (e.g., a database or a file), so
+         * it runs in the server's blocking bulkhead, which has more threads
+         * than there are processors since most of them are usually waiting.
+         */
+        BLOCKING
+    }
+
+    /**
+     * Returns the name that the handler is given in the server's
+     * {@code --pipeline} option, e.g., {@code upper-case}.
+     */
+    String name();
+
+    /**
+     * Returns where the handler needs to be run.
+     */
+    default Execution execution() {
+        return Execution.INLINE;
+    }
+
+    /**
+     * Turns a received payload into a message.
+     *
+     * @param payload The payload, from its position to its limit.
+     * @return The message, from its position to its limit.
+     */
+    default ByteBuffer decode(ByteBuffer payload) {
+        return payload;
+    }
+
+    /**
+     * Decides whether a message is handled. A message that isn't is
+     * answered with an empty reply, so that the client isn't left waiting.
+     *
+     * @param message The message, from its position to its limit, which
+     *                must be left as it is.
+     * @return Whether to handle the message.
+     */
+    default boolean filter(ByteBuffer message) {
+        return true;
+    }
+
+    /**
+     * Turns a message into a reply.
+     *
+     * @param message The message, from its position to its limit.
+     * @return The reply, from its position to its limit.
+     */
+    default ByteBuffer transform(ByteBuffer message) {
+        return message;
+    }
+
+    /**
+     * Turns a reply into the payload that is sent back.
+     *
+     * @param reply The reply, from its position to its limit.
+     * @return The payload, from its position to its limit.
+     */
+    default ByteBuffer encode(ByteBuffer reply) {
+        return reply;
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.samjakob.sockets_example;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded queue that any number of threads may add to, but only one
+ * thread may take from: a 'multi-producer, single-consumer' queue.
+ *
+ * Adding never takes a lock or retries: a producer swaps its new node in as
+ * the tail with a single atomic exchange, and then links the previous tail
+ * to it. Only the consumer moves the head, so taking needs no atomic
+ * operations at all. That makes this cheaper than a general-purpose
+ * concurrent queue for the common case of many threads handing work to one
+ * event loop.
+ *
+ * There is a brief moment, between a producer swapping in its node and
+ * linking it, when the node is in the queue but can't be reached from the
+ * head yet. During that moment, {@link #poll()} returns null even though
+ * {@link #isEmpty()} returns false, so a consumer that finds the queue
+ * empty-but-not-empty should simply try again a little later.
+ *
+ * @param <T> The type of the elements.
+ */
+final class MpscQueue<T> {
+
+    private static final class Node<T> {
+        /** The element, which is cleared once it has been taken. */
+        T value;
+
+        /** The next node, or null if this is (or was until now) the tail. */
+        volatile Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * The last node taken (or, to begin with, an empty node), whose next
+     * node holds the first element. Only the consumer uses this.
+     */
+    private Node<T> head = new Node<>(null);
+
+    /** The most recently added node. */
+    private final AtomicReference<Node<T>> tail = new AtomicReference<>(head);
+
+    /**
+     * Adds an element to the end of the queue. This may be called from any
+     * thread.
+     */
+    void offer(T value) {
+        var node = new Node<>(value);
+        tail.getAndSet(node).next = node;
+    }
+
+    /**
+     * Takes the element at the front of the queue, or returns null if there
+     * isn't one (yet). This must only be called by the consumer.
+     */
+    T poll() {
+        var next = head.next;
+        if (next == null) return null;
+
+        var value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Returns whether nothing has been added that hasn't been taken. This
+     * must only be called by the consumer.
+     */
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+}
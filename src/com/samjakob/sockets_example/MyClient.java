@@ -1,134 +1,298 @@
 package com.samjakob.sockets_example;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.Scanner;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class MyClient {
 
-    /** Trivial main method that creates a new {@link MyClient} and calls
-     * 'start' on it. */
+    /** Trivial main method that parses the command line options, creates a
+     * new {@link MyClient} and calls 'start' on it. */
     public static void main(String[] args) {
-        var client = new MyClient();
-        client.start();
+        ClientConfig config;
+
+        try {
+            config = ClientConfig.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(ClientConfig.usage());
+            return;
+        }
+
+        var client = new MyClient(config);
+        if (config.input == null) {
+            client.start();
+        } else if (!client.startBulk()) {
+            System.exit(1);
+        }
     }
 
     /**
-     * The client socket that gets connected to the server.
+     * The connection to the server.
      */
-    Socket clientSocket;
+    ScuffedClient client;
+
+    /**
+     * The options the client was started with.
+     */
+    private final ClientConfig config;
+
+    /** Creates a client with the default options. */
+    public MyClient() {
+        this(new ClientConfig());
+    }
+
+    MyClient(ClientConfig config) {
+        this.config = config;
+    }
 
     public void start() {
-        Scanner scanner = new Scanner(System.in);
+        if (!connect()) return;
 
-        try {
-            // Initialize the client socket and connect to the server.
-            clientSocket = new Socket();
-            clientSocket.connect(new InetSocketAddress(ScuffedProtocol.PORT));
-
-            // The input stream allows us to read data incoming TO the
-            // *client*.
-            var inputStream = new DataInputStream(clientSocket.getInputStream());
-            // The output stream allows us to transmit data outgoing FROM the
-            // *client*.
-            var outputStream = new DataOutputStream(clientSocket.getOutputStream());
-
-            // We print the prompt for the user to write a message.
-            System.out.print("> ");
-
-            // While we're connected, read a new line and if it's not 'exit',
-            // send it to the server and print the result.
-            while (!clientSocket.isClosed()) {
-
-                try {
-                    // TODO: when should a user be able to send messages?
-                    //  Should every outgoing message expect a response before
-                    //  another message can be sent?
-
-                    // If our System.in has some bytes ready, which would imply
-                    // that our Scanner has a next line (i.e., someone has
-                    // typed something into the console) then read the input.
-                    //
-                    // We can't just use Scanner.hasNext here because hasNext
-                    // is blocking and doing that would stop us from being able
-                    // to check for incoming messages from the server whilst we
-                    // wait for input.
-                    if (System.in.available() > 0) {
-                        String message = scanner.nextLine();
-
-                        // If the command is exit, close the socket and break
-                        // out of the loop.
-                        if (message.equalsIgnoreCase("exit")) {
-                            // Send exit to the server to tell it that the
-                            // client connection is closing.
-                            outputStream.writeUTF("exit");
-
-                            // TODO: how should you tell the server that your
-                            //  client is disconnecting? Should you introduce
-                            //  a mechanism for reconnecting automatically if
-                            //  the connection drops?
-
-                            clientSocket.close();
-                            break;
-                        }
-
-                        // Otherwise, send the message.
-                        //
-                        // We use writeUTF (UTF = Unicode) to write a string.
-                        // This writes the number of bytes in the string before
-                        // sending the string which allows the server to check
-                        // the length and that it received the whole message =
-                        // before attempting to process it.
-                        //
-                        // Which aside from convenience, is why writeUTF is
-                        // better than simply writing all the bytes and is why
-                        // writeLine is deprecated and shouldn't be used.
-                        outputStream.writeUTF(message);
-                    }
-
-                    // If our socket input stream has some number of bytes
-                    // available (i.e., the server has sent something to us),
-                    // then simply print it the line.
-                    if (inputStream.available() > 0) {
-
-                        // TODO: this will break if we receive something other
-                        //  than a UTF string. How can we deal with this?
-                        //  Deciding upon this is an important part of your
-                        //  protocol.
-
-                        // readUTF is the counterpart to writeUTF. It checks
-                        // how many bytes it is receiving by checking the
-                        // integer sent before the string and if it is of
-                        // appropriate length, reads that many bytes.
-                        System.out.println(inputStream.readUTF());
-
-                        // Now re-print the input prompt.
-                        System.out.print("> ");
-
-                    }
-                } catch (IOException ex) {
-                    // If we encounter an IOException, it means there was a
-                    // problem communicating (IO = Input/Output) so we'll log
-                    // the error.
-                    System.err.println(
-                        "A communication error occurred with the server."
-                    );
-                    ex.printStackTrace();
-                    break;
+        // Everything this thread needs to react to arrives in this queue:
+        // lines typed by the user (read on a thread of their own), replies
+        // from the server (delivered by the client's event loop) and the
+        // connection closing. This thread simply waits for the next one,
+        // so nothing uses any CPU whilst the user is thinking, and all of
+        // the console output comes from one thread.
+        var events = new LinkedBlockingQueue<ConsoleEvent>();
+        VirtualThreads.startVirtualOrDaemon(
+            "console-reader", () -> readConsole(events)
+        );
+        client.onClose().thenRun(() -> events.add(new Closed()));
+
+        // We print the prompt for the user to write a message.
+        System.out.print("> ");
+
+        // Until the user types 'exit' (or there's no more input), send each
+        // line to the server. We don't wait for the reply before reading
+        // the next line: it is printed whenever it arrives. If the
+        // connection drops, the client reconnects by itself and sends
+        // anything that hadn't been answered again, so the user only sees a
+        // delay; we only hear about it if the client gives up.
+        while (true) {
+            ConsoleEvent event;
+            try {
+                event = events.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (event instanceof Line line) {
+                // If the command is exit, close the connection and break
+                // out of the loop. Closing tells the server that we're
+                // disconnecting, and waits for the replies to anything
+                // we've already sent.
+                if (line.text().equalsIgnoreCase("exit")) break;
+
+                client.send(line.text()).whenComplete((reply, failure) ->
+                    events.add(new Reply(reply, failure))
+                );
+            } else if (event instanceof Reply reply) {
+                print(reply);
+            } else if (event instanceof Closed) {
+                System.out.println("\nThe connection to the server was lost.");
+                break;
+            } else {
+                // The console has no more input.
+                break;
+            }
+        }
+
+        client.close();
+
+        // Print the replies that arrived whilst we were closing.
+        for (var event : events) {
+            if (event instanceof Reply reply) print(reply);
+        }
+        System.out.println("\nConnection closed.");
+    }
+
+    /**
+     * Sends every line of {@link ClientConfig#input} to the server and
+     * writes the replies, one per line and in the same order, to standard
+     * output. Nothing else is written there (no prompts), so the output can
+     * be piped on to another program. Every line is sent as it is: 'exit'
+     * is just another message here.
+     *
+     * Up to {@link ClientConfig#window} lines are sent ahead of the oldest
+     * reply that hasn't been written yet, so the connection always has
+     * plenty to do rather than sitting idle for a round trip per line, but a
+     * huge file doesn't all end up queued in memory at once.
+     *
+     * @return Whether every line was sent and replied to.
+     */
+    boolean startBulk() {
+        if (!connect()) return false;
+
+        var inFlight = new ArrayDeque<CompletableFuture<String>>(config.window);
+        var sent = 0L;
+        var failed = 0L;
+        var startNanos = System.nanoTime();
+
+        // The replies all go through one large buffer, rather than a
+        // System.out.println (and flush) each.
+        var output = new BufferedWriter(
+            new OutputStreamWriter(System.out, StandardCharsets.UTF_8),
+            1 << 16
+        );
+
+        try (var input = openInput()) {
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (inFlight.size() == config.window) {
+                    if (!writeReply(inFlight.remove(), output)) failed++;
                 }
 
+                inFlight.add(client.send(line));
+                sent++;
+            }
+
+            while (!inFlight.isEmpty()) {
+                if (!writeReply(inFlight.remove(), output)) failed++;
             }
 
-            System.out.println("\nConnection closed.");
+            output.flush();
+        } catch (IOException ex) {
+            System.err.println("Failed to read the input or write the output.");
+            ex.printStackTrace();
+            return false;
+        } finally {
+            client.close();
+        }
+
+        var seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.err.printf(
+            "Sent %,d lines (%,d failed) in %.2fs: %,.0f lines/s%n",
+            sent, failed, seconds, sent / seconds
+        );
+        return failed == 0;
+    }
+
+    /**
+     * Opens {@link ClientConfig#input}, where "-" means standard input.
+     */
+    private BufferedReader openInput() throws IOException {
+        if (config.input.equals("-")) {
+            return new BufferedReader(
+                new InputStreamReader(System.in, StandardCharsets.UTF_8),
+                1 << 16
+            );
+        }
+
+        return Files.newBufferedReader(Path.of(config.input));
+    }
+
+    /**
+     * Waits for a reply and writes it as a line of output. A failed reply
+     * is reported on standard error instead (and an empty line written in
+     * its place, so that the output still lines up with the input).
+     *
+     * @return Whether the request succeeded.
+     */
+    private static boolean writeReply(
+        CompletableFuture<String> reply,
+        Writer output
+    ) throws IOException {
+        try {
+            output.write(reply.join());
+            output.write('\n');
+            return true;
+        } catch (CompletionException ex) {
+            System.err.println("A request failed: " + ex.getCause());
+            output.write('\n');
+            return false;
+        }
+    }
+
+    /**
+     * Connects to the server, reporting on standard error if we can't.
+     *
+     * @return Whether the connection was made.
+     */
+    private boolean connect() {
+        try {
+            // Connect to the server. ScuffedClient takes care of the
+            // protocol for us: framing our messages, matching up replies,
+            // answering the server's heartbeats and (if the server agrees)
+            // compressing the connection.
+            client = new ScuffedClient(
+                new InetSocketAddress(ScuffedProtocol.PORT),
+                ClientEventLoop.shared(),
+                config
+            );
+            return true;
         } catch (IOException ex) {
             System.err.println(
                 "Failed to connect to the server. Is it running?"
             );
             ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Reads lines from the console into the queue until there are no more.
+     * This runs on its own thread, which spends nearly all of its time
+     * blocked waiting for the user to type something.
+     */
+    private static void readConsole(BlockingQueue<ConsoleEvent> events) {
+        var reader = new BufferedReader(new InputStreamReader(System.in));
+
+        try {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                events.add(new Line(text));
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to read from the console.");
+            ex.printStackTrace();
         }
+
+        events.add(new EndOfInput());
     }
 
+    private static void print(Reply reply) {
+        if (reply.failure() != null) {
+            // If we encounter an exception, it means there was a problem
+            // communicating with the server, so we'll log the error.
+            System.err.println("A communication error occurred with the server.");
+            reply.failure().printStackTrace();
+            return;
+        }
+
+        System.out.println(reply.text());
+
+        // Now re-print the input prompt.
+        System.out.print("> ");
+    }
+
+    /** Something that {@link #start()} waits for. */
+    private interface ConsoleEvent {}
+
+    /** A line typed by the user. */
+    private record Line(String text) implements ConsoleEvent {}
+
+    /** The server's reply to a line, or why there won't be one. */
+    private record Reply(String text, Throwable failure) implements ConsoleEvent {}
+
+    /** The connection was closed (and the client gave up reconnecting). */
+    private record Closed() implements ConsoleEvent {}
+
+    /** The console has no more input (e.g., it reached the end of a file). */
+    private record EndOfInput() implements ConsoleEvent {}
+
 }
@@ -0,0 +1,70 @@
+package com.samjakob.sockets_example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A non-blocking alternative to {@link MyServer} that serves every
+ * connection from a small, fixed set of {@link EventLoop} threads rather
+ * than starting a new thread for each one.
+ *
+ * Every event loop is registered with the same listening channel (one per
+ * port the server listens on), so whichever loop is woken up first accepts
+ * (and then serves) the new connection.
+ */
+public class MyNioServer {
+
+    /**
+     * The server channels that accept incoming connections, one for each
+     * port.
+     */
+    final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+
+    /**
+     * The options the server was started with.
+     */
+    private final ServerConfig config;
+
+    MyNioServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    public void start() {
+        try {
+            // Initialize a server channel for each port and bind it, just
+            // like MyServer does.
+            for (var port : config.pipelines.keySet()) {
+                var serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress("0.0.0.0", port));
+
+                // A selector can only be used with non-blocking channels.
+                serverChannel.configureBlocking(false);
+                serverChannels.add(serverChannel);
+            }
+
+            for (var i = 0; i < config.eventLoops; i++) {
+                var loop = new EventLoop("event-loop-" + i, config);
+                for (var serverChannel : serverChannels) {
+                    loop.registerAcceptor(serverChannel);
+                }
+                loop.start();
+                ServerMetrics.register(() -> ServerMetrics.describe(loop));
+            }
+
+            System.out.println(
+                "Now listening on port(s) " + config.describePorts() +
+                " with " + config.eventLoops + " event loop(s)!"
+            );
+        } catch (IOException ex) {
+            System.err.println(
+                "Failed to start the server. " +
+                "Is the port already taken?"
+            );
+            ex.printStackTrace();
+        }
+    }
+
+}
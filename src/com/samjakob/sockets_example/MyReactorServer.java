@@ -0,0 +1,120 @@
+package com.samjakob.sockets_example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A non-blocking server that splits accepting connections from serving
+ * them, in what's known as the 'boss/worker' (or multi-reactor) model.
+ *
+ * One 'boss' {@link EventLoop} does nothing but accept connections, and it
+ * hands each one to one of several 'worker' event loops (one per processor
+ * by default), which then serve that connection for as long as it's open.
+ * Because accepting is so cheap, the boss keeps up with far more
+ * connections than it would if it also had to serve them.
+ */
+public class MyReactorServer {
+
+    /**
+     * How the boss decides which worker gets a new connection.
+     */
+    enum Balancing {
+        /** Workers take turns, in order. */
+        ROUND_ROBIN,
+        /** The worker serving the fewest connections is chosen. */
+        LEAST_LOADED
+    }
+
+    /**
+     * The server channels that accept incoming connections, one for each
+     * port.
+     */
+    final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+
+    /**
+     * The options the server was started with.
+     */
+    private final ServerConfig config;
+
+    /**
+     * The event loops that serve accepted connections.
+     */
+    private EventLoop[] workers;
+
+    /**
+     * The index of the worker that gets the next connection when using
+     * {@link Balancing#ROUND_ROBIN}. Only used on the boss thread.
+     */
+    private int nextWorker;
+
+    MyReactorServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    public void start() {
+        try {
+            for (var port : config.pipelines.keySet()) {
+                var serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress("0.0.0.0", port));
+                serverChannel.configureBlocking(false);
+                serverChannels.add(serverChannel);
+            }
+
+            workers = new EventLoop[config.eventLoops];
+            for (var i = 0; i < workers.length; i++) {
+                workers[i] = new EventLoop("reactor-worker-" + i, config);
+                workers[i].start();
+            }
+
+            var boss = new EventLoop("reactor-boss", config);
+            for (var serverChannel : serverChannels) {
+                boss.registerAcceptor(serverChannel, this::assign);
+            }
+            boss.start();
+
+            for (var worker : workers) {
+                ServerMetrics.register(() -> ServerMetrics.describe(worker));
+            }
+
+            System.out.println(
+                "Now listening on port(s) " + config.describePorts() +
+                " with " + workers.length + " worker loop(s) using " +
+                config.balancing + " balancing!"
+            );
+        } catch (IOException ex) {
+            System.err.println(
+                "Failed to start the server. " +
+                "Is the port already taken?"
+            );
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Hands a connection accepted by the boss to one of the workers.
+     */
+    private void assign(SocketChannel channel) {
+        chooseWorker().register(channel);
+    }
+
+    private EventLoop chooseWorker() {
+        if (config.balancing == Balancing.ROUND_ROBIN) {
+            var worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+            return worker;
+        }
+
+        var leastLoaded = workers[0];
+        for (var worker : workers) {
+            if (worker.connectionCount() < leastLoaded.connectionCount()) {
+                leastLoaded = worker;
+            }
+        }
+        return leastLoaded;
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.samjakob.sockets_example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * A 'shared-nothing' non-blocking server that opens one listening socket per
+ * event loop, all bound to the same port.
+ *
+ * Normally only one socket may be bound to a port, but the SO_REUSEPORT
+ * option lets several sockets share it. The operating system then spreads
+ * incoming connections across them, so each event loop accepts and serves
+ * its own connections without touching anything that belongs to another
+ * loop – no acceptor is shared and no connection is ever handed over.
+ *
+ * SO_REUSEPORT is only available on some operating systems (e.g., Linux and
+ * macOS). Note that only Linux actually balances connections between the
+ * sockets.
+ */
+public class MyReusePortServer {
+
+    /**
+     * The options the server was started with. One listening socket (and
+     * event loop) is opened per {@link ServerConfig#eventLoops}.
+     */
+    private final ServerConfig config;
+
+    MyReusePortServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    public void start() {
+        try {
+            for (var i = 0; i < config.eventLoops; i++) {
+                var loop = new EventLoop("reuseport-loop-" + i, config);
+                for (var port : config.pipelines.keySet()) {
+                    loop.registerAcceptor(openListener(port));
+                }
+                loop.start();
+                ServerMetrics.register(() -> ServerMetrics.describe(loop));
+            }
+
+            System.out.println(
+                "Now listening on port(s) " + config.describePorts() +
+                " with " + config.eventLoops + " SO_REUSEPORT listener(s) " +
+                "each!"
+            );
+        } catch (UnsupportedOperationException ex) {
+            System.err.println(ex.getMessage());
+        } catch (IOException ex) {
+            System.err.println(
+                "Failed to start the server. " +
+                "Is the port already taken?"
+            );
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens a new non-blocking server channel bound to the given port with
+     * SO_REUSEPORT enabled.
+     *
+     * @throws UnsupportedOperationException If this platform doesn't support
+     *                                       SO_REUSEPORT.
+     */
+    private static ServerSocketChannel openListener(int port)
+        throws IOException {
+        var serverChannel = ServerSocketChannel.open();
+
+        if (!serverChannel.supportedOptions().contains(
+            StandardSocketOptions.SO_REUSEPORT
+        )) {
+            serverChannel.close();
+            throw new UnsupportedOperationException(
+                "SO_REUSEPORT is not supported on this platform."
+            );
+        }
+
+        // SO_REUSEPORT has to be set on every socket sharing the port, and
+        // it has to be set before binding.
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        serverChannel.bind(new InetSocketAddress("0.0.0.0", port));
+        serverChannel.configureBlocking(false);
+        return serverChannel;
+    }
+
+}
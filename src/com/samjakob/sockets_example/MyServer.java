@@ -1,11 +1,23 @@
 package com.samjakob.sockets_example;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 /**
  * A delegate is simply a class that performs something on behalf of another
@@ -15,43 +27,167 @@ import java.net.Socket;
  * One of these classes is initialized for every socket that connects to the
  * server, and it is responsible for communicating with that socket in a new
  * thread (which is why it implements Runnable).
+ *
+ * Normally that thread handles each message in turn, so a client that sends
+ * many messages without waiting for replies still only has one handled at
+ * a time. With {@link ServerConfig#parallelRequests} above one, the thread
+ * only reads: it hands each message to a {@link Bulkhead}, whose workers
+ * handle several at once, and a second thread writes the replies. A
+ * {@link Resequencer} between them makes sure the replies are still written
+ * in the order the messages arrived, and that the compressor (which has to
+ * compress replies in the order they are sent) is only used by the writer.
  */
 class MyServerDelegate implements Runnable {
 
     /**
-     * The client socket that connected to the server.
+     * A frame waiting in {@link #replies} to be written.
+     */
+    private record Outgoing(
+        byte opcode,
+        int correlationId,
+        ByteBuffer payload
+    ) {}
+
+    /**
+     * The client channel that connected to the server.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The client socket that connected to the server (i.e., the socket
+     * underneath {@link #channel}).
      */
     private final Socket socket;
 
     /**
      * The input stream allows us to read data incoming TO the *server*.
      */
-    private final DataInputStream inputStream;
+    private final InputStream inputStream;
+
+    /**
+     * Holds the replies going FROM the *server* until we've handled every
+     * message that has arrived so far, so that they can all be written in
+     * one go.
+     */
+    private final WriteQueue writeQueue = new WriteQueue();
+
+    /**
+     * The frame that every incoming message is read into. Reusing it means
+     * we don't allocate a new buffer for every message.
+     */
+    private final ScuffedProtocol.Frame frame = new ScuffedProtocol.Frame();
+
+    /**
+     * The options the server was started with.
+     */
+    private final ServerConfig config;
+
+    /**
+     * The message handlers that decide how we reply to each message, as
+     * configured for the port the client connected to.
+     */
+    private final MessageHandler pipeline;
+
+    /**
+     * The bulkhead that runs {@link #pipeline}, or null if it runs on this
+     * delegate's own thread.
+     */
+    private final Bulkhead bulkhead;
+
+    /**
+     * Puts the replies back in order when messages are handled in parallel,
+     * or null if they aren't (in which case each reply is queued as soon as
+     * it is ready, which is already in order).
+     */
+    private final Resequencer<Outgoing> replies;
+
+    /**
+     * Starts the thread that writes {@link #replies}, which is the same kind
+     * of thread (platform or virtual) as the one this delegate runs on.
+     */
+    private final Executor writerExecutor;
+
     /**
-     * The output stream allows us to transmit data outgoing FROM the *server*.
+     * Counted down once the thread writing {@link #replies} has finished.
      */
-    private final DataOutputStream outputStream;
+    private final CountDownLatch writerFinished = new CountDownLatch(1);
+
+    /**
+     * Compresses our replies and decompresses the client's messages, once
+     * the client has asked for compression with a HELLO frame. Until then,
+     * this is null.
+     */
+    private FrameCompressor compressor;
+
+    /**
+     * The number of heartbeat PINGs we've sent in a row without hearing
+     * anything back from the client.
+     */
+    private int missedHeartbeats;
+
+    /**
+     * When (in {@link System#nanoTime()} terms) we last received a frame.
+     */
+    private long lastReceivedNanos = System.nanoTime();
 
     /**
      * Our constructor forces the client socket to be set (as one of these is
      * initialized for every client socket) when this class is created.
      *
-     * @param socket The client socket the delegate should be responsible for.
-     * @throws IOException If we are unable to access the input and output
-     *                     stream from the socket, we allow the IOException
-     *                     that they will generate to be thrown.
+     * @param channel The client channel the delegate should be responsible
+     *                for. This must be in blocking mode.
+     * @param config The server configuration, which holds the read timeout.
+     * @param writerExecutor Starts the thread that writes the replies, if
+     *                       messages are handled in parallel.
+     * @throws IOException If we are unable to access the input stream from
+     *                     the socket, we allow the IOException that it will
+     *                     generate to be thrown.
      */
-    MyServerDelegate(Socket socket) throws IOException {
-        this.socket = socket;
+    MyServerDelegate(
+        SocketChannel channel,
+        ServerConfig config,
+        Executor writerExecutor
+    ) throws IOException {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.config = config;
+        this.writerExecutor = writerExecutor;
+        this.pipeline = config.pipelineFor(socket.getLocalPort());
+
+        // Handling messages in parallel needs worker threads even if the
+        // handlers are quick, so quick handlers then use the CPU bulkhead.
+        var execution = pipeline.execution();
+        if (config.parallelRequests > 1
+            && execution == MessageHandler.Execution.INLINE) {
+            execution = MessageHandler.Execution.CPU_HEAVY;
+        }
+        this.bulkhead = config.bulkheadFor(execution);
+        this.replies = config.parallelRequests > 1
+            ? new Resequencer<>(config.parallelRequests)
+            : null;
 
-        // We declare the input stream and output stream on the class for
-        // convenience, and set them here when the delegate is initialized.
+        // If a read timeout (or heartbeat) is configured, a read that
+        // doesn't receive anything for that long throws a
+        // SocketTimeoutException rather than waiting forever. Until then,
+        // the read simply blocks, so the connection uses no CPU whilst it is
+        // idle.
+        socket.setSoTimeout(
+            config.heartbeatMillis > 0
+                ? config.heartbeatMillis
+                : config.readTimeoutMillis
+        );
+
+        // We declare the input stream on the class for convenience, and set
+        // it here when the delegate is initialized.
+        //
+        // We make it a final field on the class because it shouldn't be
+        // updated – as it'll last the lifetime of the socket connection, and
+        // we don't want to accidentally overwrite it.
         //
-        // We make these final fields on the class because they shouldn't be
-        // updated – as they'll last the lifetime of the socket connection, and
-        // we don't want to accidentally overwrite them.
-        this.inputStream = new DataInputStream(socket.getInputStream());
-        this.outputStream = new DataOutputStream(socket.getOutputStream());
+        // The stream is buffered so that each frame is usually read from the
+        // socket in a single system call, rather than one call for the
+        // header and another for the payload.
+        this.inputStream = new BufferedInputStream(socket.getInputStream());
     }
 
     @Override
@@ -62,49 +198,178 @@ class MyServerDelegate implements Runnable {
             socket.getRemoteSocketAddress().toString()
         );
 
+        if (replies != null) writerExecutor.execute(this::writeReplies);
+
         // While WE (server-side) haven't disconnected a client, continue to
         // attempt to read data from the socket.
         while (!socket.isClosed()) {
 
             try {
 
-                // TODO: should you 'ping' the client occasionally to ensure
-                //  the connection hasn't dropped unexpectedly? ...and if so:
-                //  – What should this ping message look like?
-                //  - How can you make sure the ping message isn't confused for
-                //  a real message?
-
-                // When there is data available from the input stream
-                if (inputStream.available() > 0) {
-                    // Read the incoming message from the server input stream.
-                    var message = inputStream.readUTF();
-
-                    // If the message is exit, the client is disconnecting, so
-                    // close the connection and break out of the loop.
-
-                    // TODO: if you just stop the client application, you'll
-                    //  notice that 'Connection closed' is not printed. How
-                    //  can you deal with the connection being dropped without
-                    //  being properly closed?
-                    if (message.equals("exit")) {
-                        socket.close();
-                        break;
+                // Wait for the next frame to start arriving. If nothing
+                // arrives in time, we either send a heartbeat or close the
+                // connection, and then go around the loop again.
+                if (!awaitFrame()) continue;
+
+                // Read the incoming frame from the server input stream.
+                //
+                // readFrame blocks until a whole frame has arrived, so an
+                // idle connection simply waits here without using any CPU.
+                // When running on a virtual thread, waiting here also frees
+                // the platform thread underneath it to run other delegates.
+                ScuffedProtocol.readFrame(inputStream, frame);
+
+                // Hearing anything at all from the client shows that it's
+                // still there.
+                missedHeartbeats = 0;
+                lastReceivedNanos = System.nanoTime();
+
+                switch (frame.opcode) {
+                    // The client is disconnecting, so send any replies we
+                    // still have and close the connection, which will end
+                    // the loop. When messages are handled in parallel, the
+                    // writer does that once it has written every earlier
+                    // reply.
+                    case ScuffedProtocol.EXIT -> {
+                        if (replies == null) {
+                            writeQueue.flush(channel);
+                            socket.close();
+                        } else {
+                            queueFrame(
+                                ScuffedProtocol.EXIT,
+                                ScuffedProtocol.NO_CORRELATION_ID,
+                                ByteBuffer.allocate(0)
+                            );
+                            awaitWriter();
+                        }
+                        continue;
+                    }
+
+                    // The client wants to know we're still here, so reply
+                    // with the same payload. The payload is copied, as the
+                    // frame's buffer is reused for the next frame we read.
+                    case ScuffedProtocol.PING -> replyCopy(
+                        ScuffedProtocol.PONG, frame.payload
+                    );
+
+                    // The client is answering one of our heartbeats. There's
+                    // nothing else to do, as we've already noted that we
+                    // heard from it.
+                    case ScuffedProtocol.PONG -> {}
+
+                    // The client is saying which optional features it
+                    // would like to use, so agree to those we allow.
+                    case ScuffedProtocol.HELLO -> {
+                        var accepted = FrameCompressor.acceptedFeatures(
+                            frame.payload, config.compression
+                        );
+                        if ((accepted & FrameCompressor.DEFLATE) != 0
+                            && compressor == null) {
+                            compressor = new FrameCompressor(
+                                config.compressionThreshold
+                            );
+                        }
+
+                        reply(
+                            ScuffedProtocol.HELLO,
+                            ByteBuffer.wrap(new byte[] { accepted })
+                        );
                     }
 
-                    // Write the outgoing message to the server output stream.
-                    outputStream.writeUTF(message.toUpperCase());
+                    // Pass the message through the port's handlers (which,
+                    // by default, convert it to upper case in the frame's
+                    // own buffer) and send back whatever they make of it.
+                    // Slow handlers are run in a bulkhead instead.
+                    case ScuffedProtocol.DATA -> {
+                        var payload = FrameCompressor.payloadOf(
+                            frame, compressor
+                        );
+                        if (replies != null) {
+                            handleInParallel(payload);
+                        } else if (bulkhead == null) {
+                            replyData(
+                                HandlerPipeline.handle(pipeline, payload)
+                            );
+                        } else {
+                            handleInBulkhead(payload);
+                        }
+                    }
+
+                    // We block reading from the client, so nothing can be
+                    // pushed to it, which means it can't subscribe to
+                    // anything (see TopicHub). Publishing is still
+                    // answered properly, though with this engine there's
+                    // never anyone subscribed.
+                    case ScuffedProtocol.SUBSCRIBE,
+                         ScuffedProtocol.UNSUBSCRIBE -> reply(
+                        frame.opcode, ByteBuffer.wrap(new byte[] { 0 })
+                    );
+
+                    case ScuffedProtocol.PUBLISH -> reply(
+                        ScuffedProtocol.PUBLISH,
+                        ByteBuffer.allocate(Integer.BYTES)
+                            .putInt(TopicHub.shared().publish(
+                                FrameCompressor.payloadOf(frame, compressor)
+                            ))
+                            .flip()
+                    );
+
+                    default -> throw new ProtocolException(
+                        "Unexpected opcode: " + frame.opcode
+                    );
+                }
+
+                // If the client has already sent more messages, handle those
+                // before writing anything, so that all of their replies can
+                // be sent together. Otherwise, we've caught up, so send the
+                // replies now. (When messages are handled in parallel, the
+                // writer does this instead.)
+                if (replies == null && inputStream.available() == 0) {
+                    writeQueue.flush(channel);
                 }
 
+            } catch (EOFException ex) {
+                // The stream ended without an 'exit' message, which means the
+                // client application was stopped (or the connection dropped)
+                // without closing the connection properly.
+                closeQuietly();
+                break;
+            } catch (SocketTimeoutException ex) {
+                // The client stopped sending partway through a frame. We
+                // can't carry on from the middle of a frame, so give up on
+                // the connection.
+                System.out.println(
+                    "Read timed out mid-frame: " +
+                    socket.getRemoteSocketAddress().toString()
+                );
+                closeQuietly();
+                break;
             } catch (IOException ex) {
                 // If we have an exception, we'll log that we failed to
                 // read data from the socket and allow the connection to
                 // close.
                 System.err.println("Failed to read from the socket.");
                 ex.printStackTrace();
+                closeQuietly();
                 break;
             }
         }
 
+        // The writer may still be writing (or waiting for) replies that the
+        // client will now never read, so stop it before tidying up what it
+        // uses.
+        if (replies != null) {
+            replies.close();
+            awaitWriter();
+        }
+
+        if (compressor != null) compressor.end();
+
+        // Give any unwritten chunks back to the pool, along with the ones
+        // this thread has cached, as the thread is about to finish.
+        writeQueue.clear();
+        BufferPool.shared().trimThreadCache();
+
         System.out.println(
             "Connection closed: " +
             socket.getRemoteSocketAddress().toString()
@@ -112,47 +377,492 @@ class MyServerDelegate implements Runnable {
 
     }
 
+    /**
+     * Waits until the next frame starts to arrive, without reading any of
+     * it.
+     *
+     * If nothing arrives within the socket's timeout, the connection is
+     * idle. If heartbeats are enabled, we send the client a PING (which it
+     * must answer with a PONG) unless it has already missed too many, in
+     * which case its connection is closed. Otherwise, the read timeout has
+     * expired, so the connection is closed.
+     *
+     * Heartbeats are PING frames rather than DATA frames, so the client can
+     * never mistake one for a message (and the server never mistakes the
+     * client's PONG for one).
+     *
+     * @return Whether a frame has started to arrive. If not, the caller
+     *         should check whether the socket is still open and wait again.
+     * @throws IOException If the socket could not be read or written.
+     */
+    private boolean awaitFrame() throws IOException {
+        if (inputStream.available() > 0) return true;
+
+        // Read (and then un-read) a single byte. A timeout here can't lose
+        // any data, unlike a timeout partway through reading a frame.
+        inputStream.mark(1);
+        try {
+            if (inputStream.read() < 0) throw new EOFException();
+        } catch (SocketTimeoutException ex) {
+            onIdle();
+            return false;
+        }
+        inputStream.reset();
+        return true;
+    }
+
+    /**
+     * Called when nothing has been received for the socket's timeout.
+     */
+    private void onIdle() throws IOException {
+        var idleMillis = (System.nanoTime() - lastReceivedNanos) / 1_000_000;
+        var address = socket.getRemoteSocketAddress().toString();
+
+        if (config.readTimeoutMillis > 0
+            && idleMillis >= config.readTimeoutMillis) {
+            // Nothing was received within the read timeout, so treat the
+            // client as gone and close the connection.
+            System.out.println("Read timed out: " + address);
+            closeQuietly();
+            return;
+        }
+
+        if (config.heartbeatMillis == 0) return;
+
+        if (missedHeartbeats >= config.heartbeatMisses) {
+            // The client hasn't answered any of our recent heartbeats, so
+            // it (or the network between us) is gone.
+            ServerMetrics.recordReaped();
+            System.out.println("Client stopped answering heartbeats: " + address);
+            closeQuietly();
+            return;
+        }
+
+        missedHeartbeats++;
+        ServerMetrics.recordHeartbeat();
+        queueFrame(
+            ScuffedProtocol.PING,
+            ScuffedProtocol.NO_CORRELATION_ID,
+            ByteBuffer.allocate(0)
+        );
+        if (replies == null) writeQueue.flush(channel);
+    }
+
+    /**
+     * Queues a frame to be sent to the client: straight onto the write queue
+     * (to be sent with the next flush), or, when messages are handled in
+     * parallel, into {@link #replies} behind the replies to every message
+     * read before it.
+     */
+    private void queueFrame(byte opcode, int correlationId, ByteBuffer payload)
+        throws IOException {
+        if (replies == null) {
+            writeQueue.addFrame(opcode, correlationId, payload);
+        } else {
+            replies.complete(
+                reserveReply(), new Outgoing(opcode, correlationId, payload)
+            );
+        }
+    }
+
+    /**
+     * Reserves the next place in {@link #replies}, waiting for the writer to
+     * make room if every place is taken. This is what stops us reading more
+     * messages than we're allowed to handle at once.
+     *
+     * @throws IOException If the writer has stopped (because the
+     *                     connection failed).
+     */
+    private long reserveReply() throws IOException {
+        try {
+            var sequence = replies.reserve();
+            if (sequence < 0) {
+                throw new IOException("The connection's writer has stopped.");
+            }
+            return sequence;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Queues a reply to the frame we last read, to be sent back to the
+     * client with the next flush. The reply carries the same correlation ID
+     * as the frame it replies to.
+     */
+    private void reply(byte opcode, ByteBuffer payload) throws IOException {
+        queueFrame(opcode, frame.correlationId, payload);
+    }
+
+    /**
+     * Like {@link #reply(byte, ByteBuffer)}, but for a payload in the frame's
+     * buffer, which is reused for the next frame we read (possibly before
+     * the reply is sent), so it has to be copied.
+     */
+    private void replyCopy(byte opcode, ByteBuffer payload) throws IOException {
+        if (replies == null) {
+            writeQueue.addFrameCopy(opcode, frame.correlationId, payload);
+        } else {
+            reply(opcode, copyOf(payload));
+        }
+    }
+
+    /**
+     * Passes a message through the pipeline in the bulkhead, waiting for the
+     * reply, and queues the reply (or an ERROR saying why there isn't one).
+     *
+     * This thread could run the handlers itself, but with many connections
+     * there would be as many handlers running at once, however heavy they
+     * are: with virtual threads, CPU-heavy handlers would take over the
+     * few platform threads underneath every connection. The bulkhead keeps
+     * the number running at once (and waiting to) within its limits, just
+     * as it does for the non-blocking engines.
+     */
+    private void handleInBulkhead(ByteBuffer payload) throws IOException {
+        var reply = new CompletableFuture<ByteBuffer>();
+        var accepted = bulkhead.execute(() -> {
+            try {
+                reply.complete(HandlerPipeline.handle(pipeline, payload));
+            } catch (RuntimeException ex) {
+                reply.completeExceptionally(ex);
+            }
+        });
+
+        if (!accepted) {
+            replyError("The server is too busy.");
+            return;
+        }
+
+        try {
+            replyData(reply.join());
+        } catch (CompletionException ex) {
+            System.err.println("A message handler failed.");
+            ex.getCause().printStackTrace();
+            replyError("The message handler failed: " + ex.getCause());
+        }
+    }
+
+    /**
+     * Hands a message to the bulkhead and reserves its reply's place in
+     * {@link #replies}, which the worker fills once it has passed the
+     * message through the pipeline. We don't wait for the worker, so we can
+     * go on to read (and hand over) the next message straight away, unless
+     * the bulkhead's queue is full, in which case we wait for room in it.
+     *
+     * @param payload The message, which is copied, as it is in the frame's
+     *                buffer.
+     */
+    private void handleInParallel(ByteBuffer payload) throws IOException {
+        var correlationId = frame.correlationId;
+        var sequence = reserveReply();
+        var message = copyOf(payload);
+
+        // The reader waits for room in the bulkhead's queue rather than
+        // refusing the message: this connection already holds no more than
+        // its window of messages, so waiting only slows it down, and a
+        // client that keeps within the window is never turned away.
+        try {
+            bulkhead.executeWhenRoom(() -> {
+                Outgoing reply;
+                try {
+                    reply = new Outgoing(
+                        ScuffedProtocol.DATA,
+                        correlationId,
+                        HandlerPipeline.handle(pipeline, message)
+                    );
+                } catch (RuntimeException ex) {
+                    System.err.println("A message handler failed.");
+                    ex.printStackTrace();
+                    reply = new Outgoing(
+                        ScuffedProtocol.ERROR,
+                        correlationId,
+                        utf8("The message handler failed: " + ex)
+                    );
+                }
+                replies.complete(sequence, reply);
+            });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted whilst waiting for a worker."
+            );
+        }
+    }
+
+    /**
+     * Writes {@link #replies} in order until the connection closes. This
+     * runs on a thread of its own, when messages are handled in parallel,
+     * and is the only thread that compresses replies or uses the write
+     * queue.
+     *
+     * Replies are written as soon as the next one in order isn't ready yet,
+     * so that those which are ready are still sent together.
+     */
+    private void writeReplies() {
+        // Replies are only compressed once our answer to the client's HELLO
+        // has been written, just as they would be if they were written as
+        // soon as the messages were read.
+        FrameCompressor sendCompressor = null;
+
+        try {
+            Outgoing next;
+            while ((next = replies.take()) != null) {
+                // The client sent EXIT, and every reply before it has been
+                // queued, so send them and close the connection.
+                if (next.opcode() == ScuffedProtocol.EXIT) {
+                    writeQueue.flush(channel);
+                    return;
+                }
+
+                var payload = next.payload();
+                if (next.opcode() == ScuffedProtocol.DATA
+                    && sendCompressor != null
+                    && sendCompressor.shouldCompress(payload.remaining())) {
+                    writeQueue.addFrame(
+                        (byte) (ScuffedProtocol.DATA
+                            | ScuffedProtocol.COMPRESSED),
+                        next.correlationId(),
+                        sendCompressor.compress(payload)
+                    );
+                } else {
+                    writeQueue.addFrame(
+                        next.opcode(), next.correlationId(), payload
+                    );
+                }
+
+                // The reader set up the compressor before queuing its HELLO
+                // reply, so we're sure to see it here.
+                if (next.opcode() == ScuffedProtocol.HELLO) {
+                    sendCompressor = compressor;
+                }
+
+                if (!replies.hasNext()) writeQueue.flush(channel);
+            }
+        } catch (IOException ex) {
+            if (!socket.isClosed()) {
+                System.err.println("Failed to write to the socket.");
+                ex.printStackTrace();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // However the writer stops, the connection is finished with:
+            // closing the socket ends the reader's loop too.
+            replies.close();
+            closeQuietly();
+            BufferPool.shared().trimThreadCache();
+            writerFinished.countDown();
+        }
+    }
+
+    /**
+     * Waits for the thread writing {@link #replies} to finish.
+     */
+    private void awaitWriter() {
+        var interrupted = false;
+        while (true) {
+            try {
+                writerFinished.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Queues an ERROR reply to the frame we last read, saying why it
+     * couldn't be handled.
+     */
+    private void replyError(String reason) throws IOException {
+        reply(ScuffedProtocol.ERROR, utf8(reason));
+    }
+
+    /**
+     * Returns a copy of the given buffer's remaining bytes, without moving
+     * its position.
+     */
+    private static ByteBuffer copyOf(ByteBuffer buffer) {
+        return ByteBuffer.allocate(buffer.remaining())
+            .put(buffer.duplicate())
+            .flip();
+    }
+
+    private static ByteBuffer utf8(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queues a DATA reply, compressing it first if the client agreed to
+     * compression and the reply is big enough to be worth compressing.
+     */
+    private void replyData(ByteBuffer payload) throws IOException {
+        if (compressor != null && compressor.shouldCompress(payload.remaining())) {
+            reply(
+                (byte) (ScuffedProtocol.DATA | ScuffedProtocol.COMPRESSED),
+                compressor.compress(payload)
+            );
+        } else if (payload == frame.payload) {
+            // The reply is still in the frame's buffer, which is reused for
+            // the next frame we read – possibly before this reply is sent –
+            // so it has to be copied.
+            writeQueue.addFrameCopy(
+                ScuffedProtocol.DATA, frame.correlationId, payload
+            );
+        } else {
+            reply(ScuffedProtocol.DATA, payload);
+        }
+    }
+
+    /**
+     * Closes the socket, ignoring any error as the socket is being discarded
+     * anyway.
+     */
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Nothing more we can do for this socket.
+        }
+    }
+
 }
 
 
 public class MyServer {
 
     /**
-     * The server socket that accepts incoming connections.
+     * The options the server was started with.
+     */
+    private final ServerConfig config;
+
+    /**
+     * Runs each {@link MyServerDelegate}. This is either a new platform
+     * thread per delegate or, in {@link ServerConfig.Mode#VIRTUAL} mode, a
+     * new virtual thread per delegate.
+     */
+    private final Executor delegateExecutor;
+
+    /**
+     * Creates a server that starts a new platform thread for every
+     * connection.
+     */
+    public MyServer() {
+        this(new ServerConfig());
+    }
+
+    /**
+     * Creates a server that runs its delegates as the given configuration's
+     * mode specifies.
+     *
+     * @param config The server configuration.
+     * @throws UnsupportedOperationException If virtual threads were
+     *                                       requested but are not supported
+     *                                       by the running JVM.
      */
-    ServerSocket serverSocket;
+    MyServer(ServerConfig config) {
+        this.config = config;
+        this.delegateExecutor = config.mode == ServerConfig.Mode.VIRTUAL
+            ? VirtualThreads.newPerTaskExecutor()
+            : delegate -> new Thread(delegate).start();
+    }
 
     /**
-     * Trivial main method that creates a new {@link MyServer} and calls
-     * 'start' on it.
+     * Main method that parses the command line options and then starts the
+     * engine they select: either a new {@link MyServer} (the default), a
+     * {@link MyNioServer}, a {@link MyReactorServer} or a
+     * {@link MyReusePortServer}.
      */
     public static void main(String[] args) {
-        var server = new MyServer();
-        server.start();
+        ServerConfig config;
+
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(ServerConfig.usage());
+            return;
+        }
+
+        try {
+            startEngine(config);
+        } catch (UnsupportedOperationException ex) {
+            System.err.println(ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts the engine selected by the given configuration. Depending on
+     * the engine, this either blocks whilst the server is running or returns
+     * once the server's own threads have been started.
+     *
+     * @param config The server configuration.
+     * @throws UnsupportedOperationException If the selected engine is not
+     *                                       supported by the running JVM.
+     */
+    static void startEngine(ServerConfig config) {
+        if (config.metricsIntervalSeconds > 0) {
+            ServerMetrics.startReporting(config.metricsIntervalSeconds);
+        }
+
+        if (config.leakDetection) {
+            BufferPool.shared().setLeakDetection(true);
+        }
+
+        switch (config.mode) {
+            case THREADS, VIRTUAL -> new MyServer(config).start();
+            case NIO -> new MyNioServer(config).start();
+            case REACTOR -> new MyReactorServer(config).start();
+            case REUSEPORT -> new MyReusePortServer(config).start();
+        }
     }
 
+    /**
+     * Listens on every configured port (see {@link ServerConfig#pipelines}),
+     * serving each connection on a thread of its own. This blocks whilst the
+     * server is running.
+     */
     public void start() {
+        var ports = new ArrayList<>(config.pipelines.keySet());
+
+        // Accepting blocks, so every port but the first gets a thread of its
+        // own to accept connections on. This thread accepts on the first.
+        for (var port : ports.subList(1, ports.size())) {
+            new Thread(() -> listen(port), "acceptor-" + port).start();
+        }
+
+        listen(ports.get(0));
+    }
+
+    /**
+     * Accepts connections on the given port until the server stops.
+     */
+    private void listen(int port) {
         try {
 
-            // Initialize the server socket and bind to the port for our
-            // protocol.
-            serverSocket = new ServerSocket();
-            serverSocket.bind(new InetSocketAddress(
+            // Initialize the server channel and bind to the port.
+            //
+            // The channel is used in blocking mode, so it behaves just like
+            // a ServerSocket, but the connections it accepts are
+            // SocketChannels, which (unlike a plain Socket) can write
+            // several buffers in one go.
+            var serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(
                     // Bind to 0.0.0.0 (which means any host)...
                     // If this doesn't work (e.g., on Windows), try changing
                     // this to "localhost".
                     "0.0.0.0",
-                    // ...and our protocol's port.
-                    ScuffedProtocol.PORT
+                    // ...and the port (by default, our protocol's port).
+                    port
             ));
 
-            System.out.println(
-                "Now listening on port " + ScuffedProtocol.PORT + "!"
-            );
+            System.out.println("Now listening on port " + port + "!");
 
-            while (!serverSocket.isClosed()) {
+            while (serverChannel.isOpen()) {
                 try {
-                    // serverSocket.accept will block execution until a
+                    // serverChannel.accept will block execution until a
                     // connection is made. We can use this to our advantage. By
                     // placing it in this loop, whilst the server is running,
                     // we will continuously wait for a socket connection.
@@ -160,16 +870,21 @@ public class MyServer {
                     // Once we get one, the code will continue to construct a
                     // MyServerDelegate class for that socket, which is then
                     // passed into a new Thread and started.
-                    var delegate = new MyServerDelegate(serverSocket.accept());
+                    var delegate = new MyServerDelegate(
+                        serverChannel.accept(),
+                        config,
+                        delegateExecutor
+                    );
 
                     // Because MyServerDelegate implements Runnable (and
                     // therefore has a run method) we can pass it into a Thread
                     // which will execute the run method on our delegate once
-                    // we call start.
+                    // we call start. Our executor does exactly that, using
+                    // either a platform thread or a virtual thread.
                     //
                     // Once execution of our runnable has stopped, the thread
                     // will automatically end and be cleaned up.
-                    new Thread(delegate).start();
+                    delegateExecutor.execute(delegate);
                 } catch (IOException ex) {
                     System.err.println(
                         "Failed to accept a socket connection. " +
@@ -0,0 +1,766 @@
+package com.samjakob.sockets_example;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The non-blocking counterpart to {@link MyServerDelegate}.
+ *
+ * One of these is created for every connection accepted by an
+ * {@link EventLoop}. Rather than having a thread of its own that waits for
+ * data, the event loop calls {@link #onReadable()} whenever some data has
+ * arrived, so the connection has to keep track of partially received
+ * messages itself.
+ *
+ * Besides replying to the client, the server can send the client messages
+ * of its own with {@link #push(String)}, from any thread. Pushed messages
+ * wait in a lock-free queue until the event loop's thread writes them, so
+ * that only that thread ever touches the channel or the write queue. This
+ * is how messages published to the {@link TopicHub} reach the connections
+ * subscribed to their topics.
+ *
+ * Messages for handlers that are too slow to run on the event loop (see
+ * {@link MessageHandler#execution()}) are handed to a {@link Bulkhead}, and
+ * the worker that handles each one hands the reply back to the event loop
+ * to be sent, in the same way.
+ */
+class NioConnection {
+
+    /**
+     * The event loop that serves this connection.
+     */
+    private final EventLoop loop;
+
+    /**
+     * The client channel that connected to the server.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The key that registers our channel with the event loop's selector.
+     * We use this to ask to be told when the channel is writable.
+     */
+    private final SelectionKey key;
+
+    /**
+     * Holds data that has been received but not yet processed (e.g., the
+     * first half of a message whose second half hasn't arrived yet).
+     *
+     * This is leased from the {@link BufferPool} (along with
+     * {@link #readLease}, which owns it) when data arrives, and given back
+     * as soon as everything received has been processed, so an idle
+     * connection holds no buffer at all. Whilst it is held, it is always
+     * left in 'write mode', i.e., ready for the channel to read more data
+     * into it.
+     */
+    private ByteBuffer readBuffer;
+    private BufferPool.Lease readLease;
+
+    /**
+     * Picks the size of {@link #readBuffer} from the sizes of recent reads.
+     */
+    private final ReceiveBufferSizer receiveSizer = new ReceiveBufferSizer();
+
+    /**
+     * The frame that every incoming message is decoded into.
+     */
+    private final ScuffedProtocol.Frame frame = new ScuffedProtocol.Frame();
+
+    /**
+     * Replies waiting to be written. These are queued whilst we handle
+     * everything that arrived in a read, and then written together.
+     */
+    private final WriteQueue writeQueue = new WriteQueue();
+
+    /**
+     * Encoded frames pushed by other threads, waiting for the event loop to
+     * move them to the write queue.
+     */
+    private final MpscQueue<SharedFrame> outbound = new MpscQueue<>();
+
+    /**
+     * The patterns this connection is subscribed to, so that it can be
+     * unsubscribed from all of them when it closes. This is only used on
+     * the event loop's thread.
+     */
+    private final List<String> subscriptions = new ArrayList<>();
+
+    /**
+     * Whether the event loop has been asked to drain {@link #outbound} and
+     * hasn't started doing so yet. Pushes made in the meantime are drained
+     * along with the first, so a burst of pushes costs one task (and at
+     * most one wakeup of the loop).
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /**
+     * The remote address, kept so that it can still be logged after the
+     * channel is closed.
+     */
+    private final String remoteAddress;
+
+    /**
+     * The options the server was started with.
+     */
+    private final ServerConfig config;
+
+    /**
+     * The message handlers that decide how we reply to each message, as
+     * configured for the port the client connected to.
+     */
+    private final MessageHandler pipeline;
+
+    /**
+     * The bulkhead that runs {@link #pipeline}, or null if it runs on the
+     * event loop.
+     */
+    private final Bulkhead bulkhead;
+
+    /**
+     * The number of messages handed to {@link #bulkhead} whose replies
+     * haven't been sent yet.
+     */
+    private int offloaded;
+
+    /**
+     * Whether the client has sent EXIT, and we're only still open to send
+     * the replies to its offloaded messages.
+     */
+    private boolean exiting;
+
+    /**
+     * Whether we're only still open to finish writing what is queued, after
+     * which the connection is closed (see {@link #closeWhenFlushed()}).
+     */
+    private boolean closing;
+
+    /**
+     * Compresses our replies and decompresses the client's messages, once
+     * the client has asked for compression with a HELLO frame. Until then,
+     * this is null.
+     */
+    private FrameCompressor compressor;
+
+    /**
+     * Whether anything has been received since the last heartbeat check.
+     */
+    private boolean receivedSinceHeartbeat;
+
+    /**
+     * When (in {@link System#nanoTime()} terms) we last received anything.
+     */
+    private long lastReceivedNanos = System.nanoTime();
+
+    /**
+     * The next heartbeat check and read timeout, if they are enabled.
+     */
+    private TimingWheel.Timeout heartbeatTimeout;
+    private TimingWheel.Timeout readTimeout;
+
+    /**
+     * The number of heartbeat PINGs we've sent in a row without hearing
+     * anything back from the client.
+     */
+    private int missedHeartbeats;
+
+    NioConnection(
+        EventLoop loop,
+        SocketChannel channel,
+        SelectionKey key,
+        ServerConfig config
+    ) throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.config = config;
+        this.remoteAddress = channel.getRemoteAddress().toString();
+        this.pipeline = config.pipelineFor(channel.socket().getLocalPort());
+        this.bulkhead = config.bulkheadFor(pipeline.execution());
+
+        System.out.println("Accepted connection from: " + remoteAddress);
+
+        // Each connection has its own timeouts on the event loop's timing
+        // wheel. Rather than cancelling and rescheduling them every time
+        // something arrives, they just check when they fire whether anything
+        // has arrived in the meantime.
+        if (config.heartbeatMillis > 0) {
+            heartbeatTimeout = loop.schedule(
+                config.heartbeatMillis * 1_000_000L, this::onHeartbeat
+            );
+        }
+
+        if (config.readTimeoutMillis > 0) {
+            readTimeout = loop.schedule(
+                config.readTimeoutMillis * 1_000_000L, this::onReadTimeout
+            );
+        }
+    }
+
+    /**
+     * Called by the event loop when there is data to read from the channel.
+     */
+    void onReadable() {
+        try {
+            // Unless part of a frame is still waiting for the rest of it,
+            // we don't hold a buffer between reads, so lease one now.
+            var fresh = readBuffer == null;
+            if (fresh) leaseReadBuffer(receiveSizer.nextSize());
+
+            var read = channel.read(readBuffer);
+
+            // A read of -1 means the client closed the connection without
+            // sending 'exit' (e.g., because the client application was
+            // stopped).
+            if (read < 0) {
+                close();
+                return;
+            }
+
+            // Only a read into an empty buffer of the size the sizer asked
+            // for says anything about how big the next buffer should be.
+            if (fresh) receiveSizer.record(read);
+
+            receivedSinceHeartbeat = true;
+            lastReceivedNanos = System.nanoTime();
+            processMessages();
+
+            // Now that every message from this read has been handled, send
+            // all of their replies together.
+            flush();
+        } catch (IOException ex) {
+            System.err.println("Failed to read from the socket.");
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel can accept more data after
+     * an earlier write could not be completed.
+     */
+    void onWritable() {
+        try {
+            flush();
+            if (closing && writeQueue.isEmpty()) close();
+        } catch (IOException ex) {
+            System.err.println("Failed to write to the socket.");
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Sends the client a message that isn't a reply to anything (so it
+     * carries {@link ScuffedProtocol#NO_CORRELATION_ID}). This may be called
+     * from any thread; the message is written by the event loop.
+     *
+     * @param message The message to send.
+     */
+    void push(String message) {
+        var payload = message.getBytes(StandardCharsets.UTF_8);
+        var frame = ByteBuffer.allocate(
+            ScuffedProtocol.headerLength(
+                ScuffedProtocol.NO_CORRELATION_ID, payload.length
+            ) + payload.length
+        );
+        ScuffedProtocol.writeHeader(
+            frame,
+            ScuffedProtocol.DATA,
+            ScuffedProtocol.NO_CORRELATION_ID,
+            payload.length
+        );
+        pushFrame(new SharedFrame(frame.put(payload).flip()));
+    }
+
+    /**
+     * Queues an encoded frame to be written to the client. This may be
+     * called from any thread.
+     *
+     * @param frame The frame. The caller must hold a reference to it, which
+     *              is handed over to this connection: the connection
+     *              releases it once the frame has been written (or
+     *              dropped).
+     */
+    void pushFrame(SharedFrame frame) {
+        outbound.offer(frame);
+        if (drainScheduled.compareAndSet(false, true)) {
+            loop.execute(this::drainOutbound);
+        }
+    }
+
+    /**
+     * Moves every pushed frame to the write queue and writes them. This
+     * runs on the event loop's thread.
+     */
+    private void drainOutbound() {
+        // Clear the flag before draining, so that a push that arrives after
+        // we've looked at the queue schedules another drain.
+        drainScheduled.set(false);
+
+        // A client that isn't reading what we send it would otherwise make
+        // us hold on to everything pushed to it, so beyond a limit, pushed
+        // frames are dropped instead. Frames pushed after we closed (or
+        // started closing) are dropped too.
+        var backlogLimit = config.pushBacklogKib * 1024L;
+        SharedFrame frame;
+        while ((frame = outbound.poll()) != null) {
+            if (!channel.isOpen() || closing) {
+                frame.release();
+            } else if (writeQueue.queuedBytes() + frame.length() > backlogLimit) {
+                ServerMetrics.recordDroppedPush();
+                frame.release();
+            } else {
+                writeQueue.add(frame.view(), frame);
+            }
+        }
+
+        // A producer that added a frame before we cleared the flag (and so
+        // left the draining to us) may not have finished linking it into
+        // the queue, in which case we couldn't see it. Make sure another
+        // drain happens to pick it up.
+        if (!outbound.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+            loop.execute(this::drainOutbound);
+        }
+
+        try {
+            flush();
+        } catch (IOException ex) {
+            System.err.println("Failed to write to the socket.");
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Called by the event loop's timing wheel once every heartbeat interval.
+     *
+     * If the client has sent nothing since the last call, we send it a PING
+     * (which it must answer with a PONG), unless it has already left too
+     * many unanswered, in which case we close the connection.
+     */
+    private void onHeartbeat() {
+        heartbeatTimeout = loop.schedule(
+            config.heartbeatMillis * 1_000_000L, this::onHeartbeat
+        );
+
+        if (receivedSinceHeartbeat) {
+            receivedSinceHeartbeat = false;
+            missedHeartbeats = 0;
+            return;
+        }
+
+        if (missedHeartbeats >= config.heartbeatMisses) {
+            ServerMetrics.recordReaped();
+            System.out.println(
+                "Client stopped answering heartbeats: " + remoteAddress
+            );
+            close();
+            return;
+        }
+
+        missedHeartbeats++;
+        ServerMetrics.recordHeartbeat();
+        writeQueue.addFrame(
+            ScuffedProtocol.PING,
+            ScuffedProtocol.NO_CORRELATION_ID,
+            ByteBuffer.allocate(0)
+        );
+
+        try {
+            flush();
+        } catch (IOException ex) {
+            System.err.println("Failed to write to the socket.");
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Called by the event loop's timing wheel when the read timeout may have
+     * expired. If something was received since the timeout was scheduled,
+     * it is scheduled again for the rest of the time instead.
+     */
+    private void onReadTimeout() {
+        var timeoutNanos = config.readTimeoutMillis * 1_000_000L;
+        var idleNanos = System.nanoTime() - lastReceivedNanos;
+
+        if (idleNanos < timeoutNanos) {
+            readTimeout = loop.schedule(
+                timeoutNanos - idleNanos, this::onReadTimeout
+            );
+            return;
+        }
+
+        System.out.println("Read timed out: " + remoteAddress);
+        close();
+    }
+
+    /**
+     * Processes every complete message currently in the read buffer, leaving
+     * any incomplete message in the buffer for when more data arrives.
+     */
+    private void processMessages() throws IOException {
+        readBuffer.flip();
+
+        // Decode frames until only an incomplete one (if any) is left.
+        while (ScuffedProtocol.decode(readBuffer, frame)) {
+            switch (frame.opcode) {
+                // The client is disconnecting, so send any replies we still
+                // have and close the connection. If some of its messages
+                // are still being handled, we wait for their replies, but
+                // stop reading anything else the client sends.
+                case ScuffedProtocol.EXIT -> {
+                    if (offloaded > 0) {
+                        exiting = true;
+                        key.interestOps(
+                            key.interestOps() & ~SelectionKey.OP_READ
+                        );
+                        releaseReadBuffer();
+                        return;
+                    }
+
+                    releaseReadBuffer();
+                    closeWhenFlushed();
+                    return;
+                }
+
+                // The payload is copied, as it is a view of our read buffer,
+                // which will be reused before the reply is written.
+                case ScuffedProtocol.PING -> writeQueue.addFrameCopy(
+                    ScuffedProtocol.PONG, frame.correlationId, frame.payload
+                );
+
+                // An answer to one of our heartbeats. Receiving it is all
+                // that matters, which onReadable has already noted.
+                case ScuffedProtocol.PONG -> {}
+
+                case ScuffedProtocol.HELLO -> {
+                    var accepted = FrameCompressor.acceptedFeatures(
+                        frame.payload, config.compression
+                    );
+                    if ((accepted & FrameCompressor.DEFLATE) != 0
+                        && compressor == null) {
+                        compressor = new FrameCompressor(
+                            config.compressionThreshold
+                        );
+                    }
+
+                    writeQueue.addFrame(
+                        ScuffedProtocol.HELLO,
+                        frame.correlationId,
+                        ByteBuffer.wrap(new byte[] { accepted })
+                    );
+                }
+
+                // The payload is decompressed here (and the reply
+                // compressed here too) even when the message is handled in
+                // the bulkhead, as the compressor may only be used by one
+                // thread.
+                case ScuffedProtocol.DATA -> {
+                    var payload = FrameCompressor.payloadOf(frame, compressor);
+                    if (bulkhead == null) {
+                        replyData(
+                            frame.correlationId,
+                            HandlerPipeline.handle(pipeline, payload)
+                        );
+                    } else {
+                        offload(frame.correlationId, payload);
+                    }
+                }
+
+                case ScuffedProtocol.SUBSCRIBE -> writeQueue.addFrame(
+                    ScuffedProtocol.SUBSCRIBE,
+                    frame.correlationId,
+                    flag(subscribe(payloadText()))
+                );
+
+                case ScuffedProtocol.UNSUBSCRIBE -> writeQueue.addFrame(
+                    ScuffedProtocol.UNSUBSCRIBE,
+                    frame.correlationId,
+                    flag(unsubscribe(payloadText()))
+                );
+
+                case ScuffedProtocol.PUBLISH -> {
+                    var delivered = TopicHub.shared().publish(
+                        FrameCompressor.payloadOf(frame, compressor)
+                    );
+                    writeQueue.addFrame(
+                        ScuffedProtocol.PUBLISH,
+                        frame.correlationId,
+                        ByteBuffer.allocate(Integer.BYTES)
+                            .putInt(delivered)
+                            .flip()
+                    );
+                }
+
+                default -> throw new ProtocolException(
+                    "Unexpected opcode: " + frame.opcode
+                );
+            }
+        }
+
+        // If everything we received has been handled, give the buffer
+        // back: the next read gets a new one.
+        if (!readBuffer.hasRemaining()) {
+            releaseReadBuffer();
+            return;
+        }
+
+        // Otherwise, move what's left (the start of a frame) to the start
+        // of the buffer, and if the frame won't fit in the buffer, move it
+        // to one that's big enough for the whole frame.
+        var frameLength = ScuffedProtocol.frameLength(readBuffer);
+        readBuffer.compact();
+
+        if (frameLength > readBuffer.capacity()) {
+            var partial = readBuffer.flip();
+            var previous = readLease;
+
+            leaseReadBuffer(frameLength);
+            readBuffer.put(partial);
+            loop.receiveBufferReleased(partial.capacity());
+            previous.release();
+        }
+    }
+
+    /**
+     * Hands a message to the bulkhead, whose worker passes it through the
+     * pipeline and then has the event loop send the reply. If the bulkhead
+     * is full, the client is told at once that we're too busy.
+     *
+     * @param payload The message, which is copied, as it may be a view of
+     *                our read buffer.
+     */
+    private void offload(int correlationId, ByteBuffer payload) {
+        var message = ByteBuffer.allocate(payload.remaining())
+            .put(payload)
+            .flip();
+
+        var accepted = bulkhead.execute(() -> {
+            try {
+                var reply = HandlerPipeline.handle(pipeline, message);
+                loop.execute(
+                    () -> completeOffloaded(correlationId, reply, null)
+                );
+            } catch (RuntimeException ex) {
+                System.err.println("A message handler failed.");
+                ex.printStackTrace();
+                loop.execute(() -> completeOffloaded(
+                    correlationId, null, "The message handler failed: " + ex
+                ));
+            }
+        });
+
+        if (accepted) {
+            offloaded++;
+        } else {
+            replyError(correlationId, "The server is too busy.");
+        }
+    }
+
+    /**
+     * Sends the reply to an offloaded message (or says why there isn't
+     * one). This runs on the event loop's thread.
+     *
+     * @param reply The reply, or null if the handler failed.
+     * @param failure Why the handler failed, if it did.
+     */
+    private void completeOffloaded(
+        int correlationId,
+        ByteBuffer reply,
+        String failure
+    ) {
+        offloaded--;
+        if (!channel.isOpen()) return;
+
+        if (reply != null) {
+            replyData(correlationId, reply);
+        } else {
+            replyError(correlationId, failure);
+        }
+
+        try {
+            if (exiting && offloaded == 0) {
+                closeWhenFlushed();
+            } else {
+                flush();
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to write to the socket.");
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Queues an ERROR reply, saying why a request couldn't be handled.
+     */
+    private void replyError(int correlationId, String reason) {
+        writeQueue.addFrame(
+            ScuffedProtocol.ERROR,
+            correlationId,
+            ByteBuffer.wrap(reason.getBytes(StandardCharsets.UTF_8))
+        );
+    }
+
+    /**
+     * Subscribes this connection to a pattern, returning whether it worked
+     * (it doesn't if the pattern isn't valid). Subscribing to a pattern
+     * that we're already subscribed to does nothing, but still counts as
+     * having worked.
+     */
+    private boolean subscribe(String pattern) {
+        try {
+            if (TopicHub.shared().subscribe(pattern, this)) {
+                subscriptions.add(pattern);
+            }
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Unsubscribes this connection from a pattern, returning whether it was
+     * subscribed to it.
+     */
+    private boolean unsubscribe(String pattern) {
+        if (!subscriptions.remove(pattern)) return false;
+
+        TopicHub.shared().unsubscribe(pattern, this);
+        return true;
+    }
+
+    /**
+     * Decodes the payload of the frame we last decoded as text.
+     */
+    private String payloadText() throws IOException {
+        return StandardCharsets.UTF_8
+            .decode(FrameCompressor.payloadOf(frame, compressor))
+            .toString();
+    }
+
+    /**
+     * Returns a one-byte payload that is 1 if the given value is true, or 0
+     * if it isn't.
+     */
+    private static ByteBuffer flag(boolean value) {
+        return ByteBuffer.wrap(new byte[] { (byte) (value ? 1 : 0) });
+    }
+
+    /**
+     * Leases a read buffer of (at least) the given size.
+     */
+    private void leaseReadBuffer(int size) {
+        readLease = BufferPool.shared().lease(size);
+        readBuffer = readLease.buffer();
+        loop.receiveBufferLeased(readBuffer.capacity());
+    }
+
+    /**
+     * Gives the read buffer back to the pool, if we hold one. Nothing may
+     * use the buffer afterwards, as it may soon belong to another
+     * connection.
+     */
+    private void releaseReadBuffer() {
+        if (readLease == null) return;
+
+        loop.receiveBufferReleased(readBuffer.capacity());
+        readLease.release();
+        readLease = null;
+        readBuffer = null;
+    }
+
+    /**
+     * Queues a DATA reply, compressing it first if the client agreed to
+     * compression and the reply is big enough to be worth compressing.
+     */
+    private void replyData(int correlationId, ByteBuffer payload) {
+        if (compressor != null && compressor.shouldCompress(payload.remaining())) {
+            writeQueue.addFrame(
+                (byte) (ScuffedProtocol.DATA | ScuffedProtocol.COMPRESSED),
+                correlationId,
+                compressor.compress(payload)
+            );
+        } else if (payload == frame.payload) {
+            // The handlers changed the message in place, so it is still a
+            // view of our read buffer and has to be copied before it is
+            // queued.
+            writeQueue.addFrameCopy(ScuffedProtocol.DATA, correlationId, payload);
+        } else {
+            writeQueue.addFrame(ScuffedProtocol.DATA, correlationId, payload);
+        }
+    }
+
+    /**
+     * Writes as many of the queued replies as the channel will take. If the
+     * socket's send buffer fills up, we ask the event loop to tell us when
+     * it's writable again so that we can write the rest.
+     */
+    private void flush() throws IOException {
+        if (!channel.isOpen()) return;
+
+        var interestOps = writeQueue.flush(channel)
+            ? key.interestOps() & ~SelectionKey.OP_WRITE
+            : key.interestOps() | SelectionKey.OP_WRITE;
+
+        if (interestOps != key.interestOps()) key.interestOps(interestOps);
+    }
+
+    /**
+     * Closes the connection once everything queued has been written. If the
+     * socket's send buffer can't take it all straight away, we stop reading
+     * and close from {@link #onWritable()} once the rest has been written,
+     * rather than throwing the client's last replies away.
+     */
+    private void closeWhenFlushed() throws IOException {
+        if (writeQueue.flush(channel)) {
+            close();
+            return;
+        }
+
+        closing = true;
+        key.interestOps(
+            (key.interestOps() & ~SelectionKey.OP_READ) | SelectionKey.OP_WRITE
+        );
+    }
+
+    /**
+     * Closes the connection. It is safe to call this more than once.
+     */
+    void close() {
+        if (!channel.isOpen()) return;
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // The channel is being discarded anyway.
+        }
+
+        loop.connectionClosed();
+        if (compressor != null) compressor.end();
+
+        // Nothing more should be published to us. Anything already on its
+        // way is dropped by drainOutbound.
+        for (var pattern : subscriptions) {
+            TopicHub.shared().unsubscribe(pattern, this);
+        }
+        subscriptions.clear();
+
+        // Give our buffers back to the pool.
+        writeQueue.clear();
+        releaseReadBuffer();
+        if (heartbeatTimeout != null) heartbeatTimeout.cancel();
+        if (readTimeout != null) readTimeout.cancel();
+
+        System.out.println("Connection closed: " + remoteAddress);
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.samjakob.sockets_example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A runnable benchmark that measures how long a running server (with one of
+ * the non-blocking engines) takes to pass a published message on to many
+ * subscribers.
+ *
+ * It opens one connection per subscriber (10,000 by default), subscribes
+ * each of them to {@code bench.*.eu}, and then publishes messages to topics
+ * that match that pattern from one more connection, at a fixed rate. Every
+ * message carries the time it was published, so each subscriber can tell
+ * how long it took to arrive. Three latencies are reported:
+ *
+ * <ul>
+ *     <li>publish: until the publisher hears back from the server, which
+ *     is as long as it takes the server to find the subscribers and queue
+ *     the message for each of them;</li>
+ *     <li>delivery: until the message reaches a subscriber, counting every
+ *     subscriber separately;</li>
+ *     <li>fan-out: until the message has reached the last of the
+ *     subscribers.</li>
+ * </ul>
+ *
+ * The subscribers and the publisher share this process's clocks, so the
+ * latencies are exact, but they also share its processors with the
+ * clients' own work, which is considerable with this many connections. The
+ * server should therefore be run on other processors (or another machine),
+ * and both processes need to be allowed enough file descriptors, e.g.,
+ * with {@code ulimit -n}.
+ *
+ * Usage: {@code PubSubBenchmark [--option=value ...]}; run it with
+ * {@code --help} for the options.
+ */
+public class PubSubBenchmark {
+
+    /** The percentiles that are reported, as fractions. */
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /** The pattern that every subscriber subscribes to. */
+    private static final String PATTERN = "bench.*.eu";
+
+    /**
+     * The most connections opened at once. Opening thousands at the same
+     * moment overflows the server's backlog of connections waiting to be
+     * accepted, and each connection that is turned away waits a second or
+     * more before trying again.
+     */
+    private static final int CONNECT_BATCH = 256;
+
+    /**
+     * How long to wait, once every message has been published, for the
+     * messages still on their way.
+     */
+    private static final long DRAIN_SECONDS = 30;
+
+    private String host = "localhost";
+    private int port = ScuffedProtocol.PORT;
+    private int subscribers = 10_000;
+    private int messages = 1_000;
+    private int rate = 100;
+    private int messageSize = 64;
+    private int loops = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final LogHistogram publishMicros = new LogHistogram();
+    private final LogHistogram deliveryMicros = new LogHistogram();
+    private final LogHistogram fanOutMicros = new LogHistogram();
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /** The number of subscribers each message has reached so far. */
+    private AtomicIntegerArray reached;
+
+    public static void main(String[] args) throws Exception {
+        var benchmark = new PubSubBenchmark();
+
+        try {
+            benchmark.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(usage());
+            System.exit(1);
+        }
+
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (var arg : args) {
+            if (arg.equals("--help")) throw new IllegalArgumentException("");
+
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException(
+                    "Expected an argument of the form --option=value but " +
+                    "got: " + arg
+                );
+            }
+
+            var name = arg.substring(2, separator);
+            var value = arg.substring(separator + 1);
+
+            switch (name) {
+                case "host" -> host = value;
+                case "port" -> port = ServerConfig.parsePositive(name, value);
+                case "subscribers" ->
+                    subscribers = ServerConfig.parsePositive(name, value);
+                case "messages" ->
+                    messages = ServerConfig.parsePositive(name, value);
+                case "rate" -> rate = ServerConfig.parsePositive(name, value);
+                case "size" ->
+                    messageSize = ServerConfig.parsePositive(name, value);
+                case "loops" -> loops = ServerConfig.parsePositive(name, value);
+                default -> throw new IllegalArgumentException(
+                    "Unknown option: --" + name
+                );
+            }
+        }
+    }
+
+    private static String usage() {
+        return String.join("\n",
+            "Usage: PubSubBenchmark [--option=value ...]",
+            "  --host=HOST          the server's host (default: localhost)",
+            "  --port=PORT          the server's port (default: " +
+                ScuffedProtocol.PORT + ")",
+            "  --subscribers=N      the number of subscriber connections",
+            "                       (default: 10000)",
+            "  --messages=N         the number of messages to publish",
+            "                       (default: 1000)",
+            "  --rate=N             messages published per second",
+            "                       (default: 100)",
+            "  --size=BYTES         the size of each message (default: 64)",
+            "  --loops=N            the number of client I/O threads",
+            "                       (default: up to 4)"
+        );
+    }
+
+    private void run() throws IOException, InterruptedException {
+        var address = new InetSocketAddress(host, port);
+        reached = new AtomicIntegerArray(messages);
+
+        var eventLoops = new ArrayList<ClientEventLoop>(loops);
+        for (var i = 0; i < loops; i++) {
+            eventLoops.add(new ClientEventLoop("pubsub-benchmark-io-" + i));
+        }
+
+        System.out.printf(
+            "Connecting %,d subscribers to %s...%n", subscribers, address
+        );
+
+        var clients = new ArrayList<ScuffedClient>(subscribers);
+        for (var start = 0; start < subscribers; start += CONNECT_BATCH) {
+            var batch = new ArrayList<CompletableFuture<Void>>();
+            for (var i = start; i < Math.min(subscribers, start + CONNECT_BATCH); i++) {
+                batch.add(
+                    ScuffedClient.connect(address, eventLoops.get(i % loops))
+                        .thenCompose(client -> {
+                            synchronized (clients) {
+                                clients.add(client);
+                            }
+                            client.onPublish(this::onMessage);
+                            return client.subscribe(PATTERN);
+                        })
+                );
+            }
+
+            CompletableFuture.allOf(batch.toArray(new CompletableFuture<?>[0]))
+                .join();
+        }
+
+        var publisher = new ScuffedClient(address, eventLoops.get(0));
+        var padding = "x".repeat(messageSize);
+
+        System.out.printf(
+            "Publishing %,d messages of %,d bytes at %,d/s to %,d " +
+            "subscribers...%n",
+            messages, messageSize, rate, subscribers
+        );
+
+        var intervalNanos = TimeUnit.SECONDS.toNanos(1) / (double) rate;
+        var startNanos = System.nanoTime();
+        var acknowledged = new ArrayList<CompletableFuture<Integer>>(messages);
+
+        for (var i = 0; i < messages; i++) {
+            var intendedNanos = startNanos + (long) (i * intervalNanos);
+
+            long now;
+            while ((now = System.nanoTime()) < intendedNanos) {
+                LockSupport.parkNanos(intendedNanos - now);
+            }
+
+            // Each message is published to a topic of its own, all of which
+            // match the subscribers' pattern. The message says which it is
+            // and when it was (due to be) published.
+            var publishedNanos = intendedNanos;
+            var topic = "bench." + (i % 100) + ".eu";
+            acknowledged.add(
+                publisher.publish(topic, i + ":" + publishedNanos + ":" + padding)
+                    .whenComplete((count, failure) -> {
+                        if (failure != null || count != subscribers) {
+                            errors.incrementAndGet();
+                            return;
+                        }
+
+                        publishMicros.record(
+                            (System.nanoTime() - publishedNanos) / 1_000
+                        );
+                    })
+            );
+        }
+
+        var expected = (long) messages * subscribers;
+        var drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while (delivered.get() < expected && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+
+        CompletableFuture.allOf(acknowledged.toArray(new CompletableFuture<?>[0]))
+            .exceptionally(ignored -> null)
+            .join();
+
+        publisher.close();
+        for (var client : clients) client.abort();
+        for (var loop : eventLoops) loop.close();
+
+        System.out.printf(
+            "%nDelivered %,d of %,d messages (%,d publish errors).%n%n",
+            delivered.get(), expected, errors.get()
+        );
+
+        System.out.printf(
+            "%-8s %14s %14s %14s%n", "", "publish", "delivery", "fan-out"
+        );
+        for (var percentile : PERCENTILES) {
+            System.out.printf(
+                "%-8s %11d us %11d us %11d us%n",
+                "p" + String.format("%.1f", percentile * 100)
+                    .replaceAll("\\.0$", ""),
+                publishMicros.percentile(percentile),
+                deliveryMicros.percentile(percentile),
+                fanOutMicros.percentile(percentile)
+            );
+        }
+        System.out.printf(
+            "%-8s %11d us %11d us %11d us%n",
+            "max", publishMicros.max(), deliveryMicros.max(), fanOutMicros.max()
+        );
+        System.out.println(
+            "\n(Publish is until the publisher is answered, delivery until " +
+            "each subscriber\nreceives the message, and fan-out until the " +
+            "last of them does.)"
+        );
+    }
+
+    /**
+     * Called (on a client event loop) whenever a subscriber receives a
+     * message.
+     */
+    private void onMessage(String topic, String message) {
+        var now = System.nanoTime();
+
+        var first = message.indexOf(':');
+        var second = message.indexOf(':', first + 1);
+        var index = Integer.parseInt(message, 0, first, 10);
+        var publishedNanos = Long.parseLong(message, first + 1, second, 10);
+
+        var latencyMicros = (now - publishedNanos) / 1_000;
+        deliveryMicros.record(latencyMicros);
+        delivered.incrementAndGet();
+
+        if (reached.incrementAndGet(index) == subscribers) {
+            fanOutMicros.record(latencyMicros);
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.samjakob.sockets_example;
+
+/**
+ * Picks the size of the buffer a connection reads into, based on how much
+ * its recent reads have actually received.
+ *
+ * Some clients only ever send a few bytes at a time, and others send tens
+ * of kilobytes. A single fixed size would either waste memory on the first
+ * kind (which, with many thousands of connections, adds up) or make the
+ * second kind take several reads (and several trips through the event
+ * loop) per message.
+ *
+ * Instead, a connection starts with a modest buffer. If a read fills it,
+ * there was probably more waiting, so the next buffer is four times the
+ * size. If two reads in a row would have fitted in half the buffer, the
+ * next one is halved. Growing quickly and shrinking slowly means a
+ * connection that sends the occasional small message between large ones
+ * doesn't keep bouncing between sizes.
+ *
+ * The sizes match the {@link BufferPool}'s, so every size is one the pool
+ * can lease without waste. Each instance belongs to a single connection
+ * and is only used by that connection's thread.
+ */
+final class ReceiveBufferSizer {
+
+    /** The size that every connection starts with, in bytes. */
+    static final int INITIAL_SIZE = 1024;
+
+    private int size = INITIAL_SIZE;
+
+    /** Whether the last read would have fitted in half the buffer. */
+    private boolean shrinkNext;
+
+    /** Returns the size of buffer to read into next. */
+    int nextSize() {
+        return size;
+    }
+
+    /**
+     * Records how many bytes a read of a buffer of {@link #nextSize()}
+     * bytes received.
+     */
+    void record(int bytesRead) {
+        if (bytesRead >= size) {
+            size = Math.min(size << 2, BufferPool.MAX_SIZE);
+            shrinkNext = false;
+        } else if (bytesRead <= size >>> 1 && size > BufferPool.MIN_SIZE) {
+            if (shrinkNext) {
+                size >>>= 1;
+                shrinkNext = false;
+            } else {
+                shrinkNext = true;
+            }
+        } else {
+            shrinkNext = false;
+        }
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.samjakob.sockets_example;
+
+/**
+ * Something that owns a buffer (or a share of one) and has to be told when
+ * the buffer is no longer needed, e.g., a {@link BufferPool.Lease} or a
+ * {@link SharedFrame}. A {@link WriteQueue} releases the owner of each
+ * buffer once the buffer has been written.
+ */
+interface Releasable {
+
+    /**
+     * Gives up the buffer. Nothing may use the buffer afterwards.
+     */
+    void release();
+
+}
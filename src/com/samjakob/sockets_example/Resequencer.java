@@ -0,0 +1,186 @@
+package com.samjakob.sockets_example;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Puts results that are finished out of order back into the order their
+ * work was started in.
+ *
+ * Each piece of work reserves a place in line with {@link #reserve()}
+ * before it starts, and fills its place with {@link #complete(long, Object)}
+ * once it is finished, on whichever thread it ran. A single consumer takes
+ * the results with {@link #take()}, which only ever hands out the result
+ * at the front of the line: a result that is finished early waits until
+ * every result before it has been taken.
+ *
+ * There are only as many places as the capacity the resequencer was
+ * created with, so however long the result at the front takes, no more
+ * than that many results are ever held waiting for it: once every place
+ * is reserved, {@link #reserve()} waits for the consumer to take one. The
+ * places are kept in a ring, so a result's place is found from its
+ * sequence number without searching or allocating anything.
+ *
+ * Every method takes the resequencer's lock, which is only ever held for a
+ * few instructions. The lock is a {@link ReentrantLock} rather than the
+ * object's monitor because the reader and writer of a connection may be
+ * virtual threads, and (before Java 24) a virtual thread that waits on a
+ * monitor holds on to its carrier thread the whole time. A connection's
+ * writer spends nearly all its time waiting in {@link #take()}, so with
+ * a monitor every idle connection would hold a carrier, and other virtual
+ * threads would soon have none left to run on.
+ *
+ * @param <T> The type of the results.
+ */
+final class Resequencer<T> {
+
+    /**
+     * The results, at their sequence number modulo the capacity. A place
+     * is null until its result is complete, and again once it is taken.
+     * Guarded by {@link #lock}, as are the fields below.
+     */
+    private final Object[] results;
+
+    /** The sequence number of the next place to be reserved. */
+    private long nextReserved;
+
+    /** The sequence number of the next result to be taken. */
+    private long nextTaken;
+
+    /** Whether {@link #close()} has been called. */
+    private boolean closed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a place is freed whilst every place was reserved. */
+    private final Condition notFull = lock.newCondition();
+
+    /** Signalled when the result at the front of the line is completed. */
+    private final Condition headReady = lock.newCondition();
+
+    /**
+     * @param capacity The most places that may be reserved but not yet
+     *                 taken.
+     */
+    Resequencer(int capacity) {
+        this.results = new Object[capacity];
+    }
+
+    /**
+     * Reserves the next place in line, waiting for the consumer to take a
+     * result first if every place is already reserved.
+     *
+     * @return The place's sequence number, to be given to
+     *         {@link #complete(long, Object)}, or -1 if the resequencer
+     *         has been closed.
+     * @throws InterruptedException If the thread is interrupted whilst
+     *                              waiting.
+     */
+    long reserve() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && nextReserved - nextTaken == results.length) {
+                notFull.await();
+            }
+
+            return closed ? -1 : nextReserved++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fills a reserved place with its result. This may be called from any
+     * thread. A result completed after the resequencer was closed is
+     * dropped.
+     *
+     * @param sequence The place's sequence number.
+     * @param result The result, which must not be null.
+     */
+    void complete(long sequence, T result) {
+        lock.lock();
+        try {
+            if (closed) return;
+
+            results[index(sequence)] = result;
+            if (sequence == nextTaken) headReady.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the result at the front of the line, waiting for it to be
+     * completed if it hasn't been yet. This must only be called by the
+     * consumer.
+     *
+     * @return The result, or null if the resequencer has been closed.
+     * @throws InterruptedException If the thread is interrupted whilst
+     *                              waiting.
+     */
+    T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && results[index(nextTaken)] == null) {
+                headReady.await();
+            }
+
+            return closed ? null : remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the result at the front of the line is complete, so
+     * that {@link #take()} would return it straight away.
+     */
+    boolean hasNext() {
+        lock.lock();
+        try {
+            return !closed && results[index(nextTaken)] != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the resequencer, dropping every result still held and waking
+     * every waiting thread. It is safe to call this more than once.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            Arrays.fill(results, null);
+            notFull.signalAll();
+            headReady.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the result at the front of the line, which must be complete.
+     * The lock must be held.
+     */
+    @SuppressWarnings("unchecked")
+    private T remove() {
+        // Only if every place was reserved can a reserve() be waiting for
+        // the place this frees.
+        var wasFull = nextReserved - nextTaken == results.length;
+
+        var index = index(nextTaken++);
+        var result = (T) results[index];
+        results[index] = null;
+
+        if (wasFull) notFull.signal();
+        return result;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % results.length);
+    }
+
+}
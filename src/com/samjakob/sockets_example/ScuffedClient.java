@@ -0,0 +1,1169 @@
+package com.samjakob.sockets_example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A ScuffedProtocol client for use by other programs (rather than by a
+ * person at a console, like {@link MyClient}, which is itself built on this
+ * class).
+ *
+ * Any number of requests can be in flight on a single connection at once:
+ * {@link #send(String)} returns straight away with a
+ * {@link CompletableFuture} that is completed when the reply arrives. Each
+ * request is tagged with a correlation ID, which the server copies into its
+ * reply, so that the reply completes the right future.
+ *
+ * The connection is non-blocking and has no thread of its own. All of its
+ * reading and writing is done by a {@link ClientEventLoop}, which can serve
+ * any number of connections, so the futures are completed on that loop's
+ * thread. Anything attached to them that takes a while should therefore be
+ * run asynchronously (e.g., with thenApplyAsync), or it will hold up every
+ * other connection on the loop.
+ *
+ * If the connection drops after it was made (e.g., because the server was
+ * restarted), the client reconnects by itself, waiting a little longer
+ * after each failed attempt. Requests that hadn't been answered are sent
+ * again once it has reconnected, and requests sent in the meantime are held
+ * (up to a limit) until then. A request may therefore reach the server
+ * twice, if the connection dropped after the server received it but before
+ * its reply arrived, so this is only safe for requests that can be repeated
+ * (as the server's upper-casing can).
+ *
+ * This class is thread-safe.
+ */
+public class ScuffedClient implements Closeable {
+
+    /**
+     * How long {@link #close()} waits for the server to finish replying
+     * before closing the connection anyway.
+     */
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    /**
+     * A request that is waiting for a reply, kept so that it can be sent
+     * again if the connection drops.
+     *
+     * @param sequence Orders the requests by when they were sent (unlike
+     *                 correlation IDs, this never wraps around).
+     * @param opcode The request's opcode: DATA, PING, SUBSCRIBE,
+     *               UNSUBSCRIBE or PUBLISH.
+     * @param message The request's payload as text: the message of a DATA
+     *                request, the pattern of a SUBSCRIBE or UNSUBSCRIBE, or
+     *                the topic and message of a PUBLISH. Null for a PING.
+     * @param future Completed with the reply.
+     */
+    private record Request(
+        long sequence,
+        byte opcode,
+        String message,
+        CompletableFuture<String> future
+    ) {}
+
+    /**
+     * The address of the server.
+     */
+    private final InetSocketAddress address;
+
+    /**
+     * The event loop that reads and writes for this connection.
+     */
+    private final ClientEventLoop loop;
+
+    /**
+     * The channel that is connected to the server. This is replaced (on the
+     * loop's thread) when the client reconnects.
+     */
+    private volatile SocketChannel channel;
+
+    /**
+     * The options the client was created with.
+     */
+    private final ClientConfig config;
+
+    /**
+     * The key that registers our channel with the loop's selector. This is
+     * only used on the loop's thread.
+     */
+    private SelectionKey key;
+
+    /**
+     * Holds data that has been received but not yet processed. This is only
+     * used on the loop's thread.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+
+    /**
+     * The frame that every incoming reply is decoded into.
+     */
+    private final ScuffedProtocol.Frame frame = new ScuffedProtocol.Frame();
+
+    /**
+     * Frames waiting to be written. Any thread may queue a frame and the
+     * loop's thread writes them, so this is guarded by itself.
+     */
+    private final WriteQueue writeQueue = new WriteQueue(written -> {});
+
+    /**
+     * Whether the loop has already been asked to flush the write queue.
+     * Requests sent before it gets around to it are written together, with
+     * only one wake-up of the loop.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * The requests that have been sent but not yet replied to, keyed by
+     * their correlation ID.
+     */
+    private final Map<Integer, Request> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Completed once the connection has been made.
+     */
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
+
+    /**
+     * Completed once the connection has been closed.
+     */
+    private final CompletableFuture<Void> closedFuture = new CompletableFuture<>();
+
+    /**
+     * Set once the connection is closing (or has been lost for good), after
+     * which new requests fail straight away instead of waiting for a reply that will
+     * never come. Guarded by {@link #writeQueue}.
+     */
+    private boolean closed;
+
+    /**
+     * The correlation ID given to the last request. Guarded by
+     * {@link #writeQueue}.
+     */
+    private int lastCorrelationId = ScuffedProtocol.NO_CORRELATION_ID;
+
+    /**
+     * The sequence number given to the last request. Guarded by
+     * {@link #writeQueue}.
+     */
+    private long lastSequence;
+
+    /**
+     * Set whilst the connection has dropped and we're trying to reconnect.
+     * New requests aren't written whilst this is set; they wait in
+     * {@link #pending} to be sent once we've reconnected. Guarded by
+     * {@link #writeQueue}.
+     */
+    private boolean reconnecting;
+
+    /**
+     * The number of reconnection attempts that have failed in a row. This is
+     * only used on the loop's thread.
+     */
+    private int reconnectAttempts;
+
+    /**
+     * Compresses our requests and decompresses the server's replies, once
+     * the server has agreed to compression. Guarded by {@link #writeQueue}.
+     */
+    private FrameCompressor compressor;
+
+    /**
+     * Given every message the server pushes, if set.
+     */
+    private volatile Consumer<String> pushListener;
+
+    /**
+     * Given the topic and message of everything published to the topics
+     * we're subscribed to, if set.
+     */
+    private volatile BiConsumer<String, String> publishListener;
+
+    /**
+     * The patterns we've subscribed to, so that we can subscribe to them
+     * again if we have to reconnect. Guarded by {@link #writeQueue}.
+     */
+    private final Set<String> subscriptions = new LinkedHashSet<>();
+
+    /**
+     * Connects to a ScuffedProtocol server using the shared event loop, and
+     * waits for the connection to be made.
+     *
+     * @param address The address of the server.
+     * @throws IOException If the connection could not be made.
+     */
+    public ScuffedClient(InetSocketAddress address) throws IOException {
+        this(address, ClientEventLoop.shared());
+    }
+
+    /**
+     * Connects to a ScuffedProtocol server using the given event loop, and
+     * waits for the connection to be made.
+     *
+     * @param address The address of the server.
+     * @param loop The event loop that reads and writes for the connection.
+     * @throws IOException If the connection could not be made.
+     */
+    public ScuffedClient(InetSocketAddress address, ClientEventLoop loop)
+        throws IOException {
+        this(address, loop, new ClientConfig());
+    }
+
+    /**
+     * Connects to a ScuffedProtocol server with the given options, and waits
+     * for the connection to be made.
+     */
+    ScuffedClient(
+        InetSocketAddress address,
+        ClientEventLoop loop,
+        ClientConfig config
+    ) throws IOException {
+        this(address, loop, config, true);
+    }
+
+    /**
+     * Starts connecting to a ScuffedProtocol server, optionally waiting for
+     * the connection to be made.
+     */
+    private ScuffedClient(
+        InetSocketAddress address,
+        ClientEventLoop loop,
+        ClientConfig config,
+        boolean waitForConnection
+    ) throws IOException {
+        this.address = address;
+        this.loop = loop;
+        this.config = config;
+        this.channel = openChannel();
+
+        // Ask the server to compress the connection before anything else is
+        // sent (the HELLO waits in the write queue until we've connected).
+        if (config.compression) queueHello();
+
+        startConnecting();
+        if (!waitForConnection) return;
+
+        try {
+            connected.get();
+        } catch (ExecutionException ex) {
+            throw asIOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            loop.execute(() -> closeNow(
+                new IOException("Interrupted whilst connecting.")
+            ));
+            throw new IOException("Interrupted whilst connecting.", ex);
+        }
+    }
+
+    /**
+     * Connects to a ScuffedProtocol server using the shared event loop,
+     * without waiting for the connection to be made.
+     *
+     * @param address The address of the server.
+     * @return A future that is completed with the client once it has
+     *         connected, or completed exceptionally if it couldn't.
+     */
+    public static CompletableFuture<ScuffedClient> connect(
+        InetSocketAddress address
+    ) {
+        return connect(address, ClientEventLoop.shared());
+    }
+
+    /**
+     * Connects to a ScuffedProtocol server using the given event loop,
+     * without waiting for the connection to be made.
+     *
+     * @param address The address of the server.
+     * @param loop The event loop that reads and writes for the connection.
+     * @return A future that is completed with the client once it has
+     *         connected, or completed exceptionally if it couldn't.
+     */
+    public static CompletableFuture<ScuffedClient> connect(
+        InetSocketAddress address,
+        ClientEventLoop loop
+    ) {
+        ScuffedClient client;
+        try {
+            client = new ScuffedClient(address, loop, new ClientConfig(), false);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+
+        return client.connected.thenApply(ignored -> client);
+    }
+
+    /**
+     * Sends a message to the server without waiting for the reply.
+     *
+     * @param message The message to send.
+     * @return A future that is completed with the server's reply, or
+     *         completed exceptionally if the connection is lost first.
+     */
+    public CompletableFuture<String> send(String message) {
+        var future = new CompletableFuture<String>();
+
+        synchronized (writeQueue) {
+            queueRequest(ScuffedProtocol.DATA, message, future);
+        }
+
+        scheduleFlush();
+        return future;
+    }
+
+    /**
+     * Sends several messages to the server together, without waiting for
+     * the replies.
+     *
+     * This is cheaper than calling {@link #send(String)} for each message,
+     * as they are queued in one go and then written together.
+     *
+     * @param messages The messages to send, in order.
+     * @return A future that is completed with the server's replies, in the
+     *         same order as the messages, once every reply has arrived. It
+     *         is completed exceptionally if the connection is lost first.
+     */
+    public CompletableFuture<List<String>> sendAll(List<String> messages) {
+        var futures = new ArrayList<CompletableFuture<String>>(messages.size());
+
+        synchronized (writeQueue) {
+            if (closed) {
+                return CompletableFuture.failedFuture(
+                    new IOException("The connection was closed.")
+                );
+            }
+
+            for (var message : messages) {
+                var future = new CompletableFuture<String>();
+                queueRequest(ScuffedProtocol.DATA, message, future);
+                futures.add(future);
+            }
+        }
+
+        scheduleFlush();
+
+        return CompletableFuture
+            .allOf(futures.toArray(new CompletableFuture<?>[0]))
+            .thenApply(ignored -> {
+                var replies = new ArrayList<String>(futures.size());
+                for (var future : futures) replies.add(future.join());
+                return replies;
+            });
+    }
+
+    /**
+     * Sends a PING to the server, to check that the connection still works.
+     *
+     * @return A future that is completed when the server's PONG arrives, or
+     *         completed exceptionally if the connection is lost first.
+     */
+    public CompletableFuture<Void> ping() {
+        var future = new CompletableFuture<String>();
+
+        synchronized (writeQueue) {
+            queueRequest(ScuffedProtocol.PING, null, future);
+        }
+
+        scheduleFlush();
+        return future.thenApply(ignored -> null);
+    }
+
+    /**
+     * Subscribes to every topic that matches a pattern, e.g.,
+     * {@code orders.*.eu} (see {@link TopicTrie} for the wildcards). The
+     * messages published to those topics are given to the
+     * {@link #onPublish(BiConsumer) publish listener}.
+     *
+     * If the client reconnects, it subscribes again by itself.
+     *
+     * @param pattern The pattern.
+     * @return A future that is completed once the server has subscribed us,
+     *         or completed exceptionally if it refused (e.g., because the
+     *         pattern isn't valid) or the connection is lost first.
+     */
+    public CompletableFuture<Void> subscribe(String pattern) {
+        var future = new CompletableFuture<String>();
+
+        synchronized (writeQueue) {
+            subscriptions.add(pattern);
+            queueRequest(ScuffedProtocol.SUBSCRIBE, pattern, future);
+        }
+
+        scheduleFlush();
+        return future.thenApply(accepted -> {
+            if (Boolean.parseBoolean(accepted)) return null;
+
+            synchronized (writeQueue) {
+                subscriptions.remove(pattern);
+            }
+            throw new CompletionException(new IOException(
+                "The server refused to subscribe to: " + pattern
+            ));
+        });
+    }
+
+    /**
+     * Undoes a {@link #subscribe(String)} with the same pattern.
+     *
+     * @param pattern The pattern.
+     * @return A future that is completed with whether we were subscribed to
+     *         the pattern, or completed exceptionally if the connection is
+     *         lost first.
+     */
+    public CompletableFuture<Boolean> unsubscribe(String pattern) {
+        var future = new CompletableFuture<String>();
+
+        synchronized (writeQueue) {
+            subscriptions.remove(pattern);
+            queueRequest(ScuffedProtocol.UNSUBSCRIBE, pattern, future);
+        }
+
+        scheduleFlush();
+        return future.thenApply(Boolean::parseBoolean);
+    }
+
+    /**
+     * Publishes a message to a topic, e.g., {@code orders.uk.eu}, sending
+     * it to everyone subscribed to a pattern that matches the topic.
+     *
+     * @param topic The topic, which may not contain wildcards.
+     * @param message The message.
+     * @return A future that is completed with the number of subscribers the
+     *         message was sent to, or completed exceptionally if the topic
+     *         isn't valid or the connection is lost first.
+     */
+    public CompletableFuture<Integer> publish(String topic, String message) {
+        if (topic.indexOf(ScuffedProtocol.TOPIC_SEPARATOR) >= 0) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                "A topic can't contain the topic separator."
+            ));
+        }
+
+        var future = new CompletableFuture<String>();
+
+        synchronized (writeQueue) {
+            queueRequest(
+                ScuffedProtocol.PUBLISH,
+                topic + (char) ScuffedProtocol.TOPIC_SEPARATOR + message,
+                future
+            );
+        }
+
+        scheduleFlush();
+        return future.thenApply(reply -> {
+            var delivered = Integer.parseInt(reply);
+            if (delivered >= 0) return delivered;
+
+            throw new CompletionException(new IllegalArgumentException(
+                "The server says the topic isn't valid: " + topic
+            ));
+        });
+    }
+
+    /**
+     * Tells the server that we're disconnecting and closes the connection,
+     * once the server has replied to every request that has already been
+     * sent (or after a few seconds, if it doesn't). Any requests still
+     * waiting for a reply after that are failed.
+     *
+     * If this is called on the event loop's thread (e.g., from a future
+     * attached to one of the requests), it doesn't wait for the connection
+     * to close, as the loop couldn't close it whilst we waited.
+     */
+    @Override
+    public void close() {
+        synchronized (writeQueue) {
+            if (!closed) {
+                closed = true;
+
+                // If we're not connected, there's no one to tell (or to wait
+                // for), so just give up.
+                if (reconnecting) {
+                    loop.execute(() -> closeNow(new IOException(
+                        "The connection was closed whilst reconnecting."
+                    )));
+                } else {
+                    writeQueue.addFrame(
+                        ScuffedProtocol.EXIT,
+                        ScuffedProtocol.NO_CORRELATION_ID,
+                        ByteBuffer.allocate(0)
+                    );
+                }
+            }
+        }
+
+        scheduleFlush();
+        if (loop.inLoop()) return;
+
+        try {
+            closedFuture.get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            // Fall through to closing the connection ourselves.
+        }
+
+        loop.execute(() -> closeNow(
+            new IOException("The server didn't close the connection.")
+        ));
+    }
+
+    /**
+     * Closes the connection straight away, without telling the server or
+     * waiting for replies (e.g., because the connection has stopped
+     * working). Any requests still waiting for a reply are failed.
+     */
+    void abort() {
+        synchronized (writeQueue) {
+            closed = true;
+        }
+
+        loop.execute(() -> closeNow(
+            new IOException("The connection was aborted.")
+        ));
+    }
+
+    /**
+     * Returns whether the connection has been closed (or lost).
+     */
+    public boolean isClosed() {
+        return closedFuture.isDone();
+    }
+
+    /**
+     * Sets the listener that is given every message the server sends of its
+     * own accord (rather than in reply to a request). Such messages are
+     * dropped whilst there is no listener.
+     *
+     * The listener is called on the event loop's thread, so, like anything
+     * attached to the futures, it should hand off anything that takes a
+     * while.
+     *
+     * @param listener The listener, or null to drop pushed messages.
+     */
+    public void onPush(Consumer<String> listener) {
+        pushListener = listener;
+    }
+
+    /**
+     * Sets the listener that is given the topic and message of everything
+     * published to the topics we've {@link #subscribe(String) subscribed}
+     * to. Such messages are dropped whilst there is no listener.
+     *
+     * As with {@link #onPush(Consumer)}, the listener is called on the
+     * event loop's thread.
+     *
+     * @param listener The listener, or null to drop published messages.
+     */
+    public void onPublish(BiConsumer<String, String> listener) {
+        publishListener = listener;
+    }
+
+    /**
+     * Returns a future that is completed once the connection has been
+     * closed (or lost).
+     */
+    public CompletableFuture<Void> onClose() {
+        return closedFuture.thenApply(ignored -> null);
+    }
+
+    /**
+     * Returns the number of requests that are waiting for a reply.
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Records a request as pending and, unless we're reconnecting, queues
+     * its frame. If the request can't be sent, its future is failed
+     * instead. Must be called whilst holding the lock on
+     * {@link #writeQueue}.
+     */
+    private void queueRequest(
+        byte opcode,
+        String message,
+        CompletableFuture<String> future
+    ) {
+        if (closed) {
+            future.completeExceptionally(
+                new IOException("The connection was closed.")
+            );
+            return;
+        }
+
+        // Whilst we're disconnected, requests pile up until we reconnect,
+        // so put a limit on how many we hold on to.
+        if (reconnecting && pending.size() >= config.maxPendingRequests) {
+            future.completeExceptionally(new IOException(
+                "Reconnecting to the server, and already holding " +
+                config.maxPendingRequests + " requests."
+            ));
+            return;
+        }
+
+        var correlationId = nextCorrelationId();
+        var request = new Request(++lastSequence, opcode, message, future);
+        pending.put(correlationId, request);
+
+        if (!reconnecting) writeRequest(correlationId, request);
+    }
+
+    /**
+     * Queues the frame for a request, compressing it if the server agreed
+     * to compression. Must be called whilst holding the lock on
+     * {@link #writeQueue}.
+     */
+    private void writeRequest(int correlationId, Request request) {
+        if (request.opcode() == ScuffedProtocol.PING) {
+            writeQueue.addFrame(
+                ScuffedProtocol.PING, correlationId, ByteBuffer.allocate(0)
+            );
+            return;
+        }
+
+        var payload = ByteBuffer.wrap(
+            request.message().getBytes(StandardCharsets.UTF_8)
+        );
+
+        // Only messages are worth compressing; patterns and topics are
+        // short, and a published message is passed on to subscribers as
+        // it is, so it must stay uncompressed.
+        if (request.opcode() != ScuffedProtocol.DATA) {
+            writeQueue.addFrame(request.opcode(), correlationId, payload);
+            return;
+        }
+
+        if (compressor != null && compressor.shouldCompress(payload.remaining())) {
+            writeQueue.addFrame(
+                (byte) (ScuffedProtocol.DATA | ScuffedProtocol.COMPRESSED),
+                correlationId,
+                compressor.compress(payload)
+            );
+        } else {
+            writeQueue.addFrame(ScuffedProtocol.DATA, correlationId, payload);
+        }
+    }
+
+    /**
+     * Returns the next correlation ID, skipping over
+     * {@link ScuffedProtocol#NO_CORRELATION_ID} when the IDs wrap around.
+     * Must be called whilst holding the lock on {@link #writeQueue}.
+     */
+    private int nextCorrelationId() {
+        lastCorrelationId = lastCorrelationId == Integer.MAX_VALUE
+            ? ScuffedProtocol.NO_CORRELATION_ID + 1
+            : lastCorrelationId + 1;
+        return lastCorrelationId;
+    }
+
+    /**
+     * Asks the event loop to write the queued frames, unless it has already
+     * been asked and hasn't done so yet.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Queues a HELLO asking the server to compress the connection. Must be
+     * called whilst holding the lock on {@link #writeQueue} (or before the
+     * client has been shared with other threads).
+     */
+    private void queueHello() {
+        writeQueue.addFrame(
+            ScuffedProtocol.HELLO,
+            ScuffedProtocol.NO_CORRELATION_ID,
+            ByteBuffer.wrap(new byte[] { FrameCompressor.DEFLATE })
+        );
+    }
+
+    private static SocketChannel openChannel() throws IOException {
+        var channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * Starts connecting to the server, on the event loop's thread.
+     */
+    private void startConnecting() {
+        loop.execute(() -> {
+            try {
+                connectChannel();
+            } catch (IOException ex) {
+                closeNow(ex);
+            }
+        });
+    }
+
+    /**
+     * Registers the current channel with the loop and starts connecting it.
+     * This must be called on the loop's thread.
+     */
+    private void connectChannel() throws IOException {
+        key = loop.register(channel, 0, this);
+
+        if (channel.connect(address)) {
+            onConnected();
+        } else {
+            key.interestOps(SelectionKey.OP_CONNECT);
+        }
+    }
+
+    /**
+     * Called by the event loop when a connection attempt has finished.
+     */
+    void onConnectable() {
+        try {
+            if (channel.finishConnect()) onConnected();
+        } catch (IOException ex) {
+            // If we've never managed to connect, the caller is still waiting
+            // to hear whether we could, so tell them rather than retrying.
+            if (connected.isDone()) {
+                closeChannel();
+                scheduleReconnect();
+            } else {
+                closeNow(ex);
+            }
+        }
+    }
+
+    private void onConnected() throws IOException {
+        // Requests are usually small, so we don't want them to be held back
+        // waiting to be combined with later ones.
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        key.interestOps(SelectionKey.OP_READ);
+
+        if (connected.isDone()) {
+            reconnectAttempts = 0;
+            replayPending();
+        } else {
+            connected.complete(null);
+        }
+
+        // Write anything that was sent whilst we were connecting.
+        flush();
+    }
+
+    /**
+     * Called by the event loop when there are replies to read.
+     */
+    void onReadable() {
+        try {
+            if (channel.read(readBuffer) < 0) {
+                connectionLost(null);
+                return;
+            }
+
+            processReplies();
+            flush();
+        } catch (ProtocolException ex) {
+            // The server is sending us nonsense, which reconnecting won't
+            // fix.
+            closeNow(ex);
+        } catch (IOException ex) {
+            connectionLost(ex);
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel can accept more data after
+     * an earlier write could not be completed.
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Handles every complete frame in the read buffer, leaving any
+     * incomplete frame for when more data arrives.
+     */
+    private void processReplies() throws IOException {
+        readBuffer.flip();
+
+        while (ScuffedProtocol.decode(readBuffer, frame)) {
+            switch (frame.opcode) {
+                case ScuffedProtocol.DATA -> {
+                    FrameCompressor decompressor;
+                    synchronized (writeQueue) {
+                        decompressor = compressor;
+                    }
+
+                    var reply = StandardCharsets.UTF_8
+                        .decode(FrameCompressor.payloadOf(frame, decompressor))
+                        .toString();
+
+                    // A message without a correlation ID isn't a reply:
+                    // the server sent it of its own accord.
+                    if (frame.correlationId == ScuffedProtocol.NO_CORRELATION_ID) {
+                        var listener = pushListener;
+                        if (listener != null) listener.accept(reply);
+                    } else {
+                        completePending(frame.correlationId, reply);
+                    }
+                }
+
+                // The server's answer to one of our pings.
+                case ScuffedProtocol.PONG -> completePending(
+                    frame.correlationId, ""
+                );
+
+                // The server's answer to a (un)subscription: a single byte
+                // saying whether it worked.
+                case ScuffedProtocol.SUBSCRIBE, ScuffedProtocol.UNSUBSCRIBE ->
+                    completePending(
+                        frame.correlationId,
+                        Boolean.toString(
+                            frame.payload.hasRemaining()
+                                && frame.payload.get(frame.payload.position()) == 1
+                        )
+                    );
+
+                // Either a message published to one of our subscriptions,
+                // or the server's answer to something we published.
+                case ScuffedProtocol.PUBLISH -> {
+                    if (frame.correlationId == ScuffedProtocol.NO_CORRELATION_ID) {
+                        deliverPublished(frame.payload);
+                    } else if (frame.payload.remaining() == Integer.BYTES) {
+                        completePending(
+                            frame.correlationId,
+                            Integer.toString(
+                                frame.payload.getInt(frame.payload.position())
+                            )
+                        );
+                    } else {
+                        throw new ProtocolException(
+                            "A PUBLISH reply should be " + Integer.BYTES +
+                            " bytes long."
+                        );
+                    }
+                }
+
+                // The server couldn't handle one of our requests.
+                case ScuffedProtocol.ERROR -> failRequest(
+                    frame.correlationId,
+                    new IOException(
+                        "The server failed to handle the request: " +
+                        StandardCharsets.UTF_8.decode(frame.payload)
+                    )
+                );
+
+                // The server wants to know we're still here. The payload is
+                // copied, as it is a view of our read buffer.
+                case ScuffedProtocol.PING -> {
+                    synchronized (writeQueue) {
+                        writeQueue.addFrame(
+                            ScuffedProtocol.PONG,
+                            frame.correlationId,
+                            ByteBuffer.allocate(frame.payload.remaining())
+                                .put(frame.payload)
+                                .flip()
+                        );
+                    }
+                }
+
+                // The server's answer to our HELLO, saying which of the
+                // features we asked for it agreed to.
+                case ScuffedProtocol.HELLO -> {
+                    var accepted = frame.payload.hasRemaining()
+                        ? frame.payload.get(frame.payload.position())
+                        : 0;
+
+                    synchronized (writeQueue) {
+                        if ((accepted & FrameCompressor.DEFLATE) != 0
+                            && compressor == null) {
+                            compressor = new FrameCompressor(
+                                config.compressionThreshold
+                            );
+                        }
+                    }
+                }
+
+                // The server is going away, which is only the end of the
+                // connection if we asked it to go.
+                case ScuffedProtocol.EXIT -> {
+                    connectionLost(null);
+                    return;
+                }
+
+                default -> throw new ProtocolException(
+                    "Unexpected opcode: " + frame.opcode
+                );
+            }
+        }
+
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            var larger = ByteBuffer.allocate(Math.min(
+                readBuffer.capacity() * 2,
+                ScuffedProtocol.MAX_HEADER_LENGTH +
+                    ScuffedProtocol.MAX_PAYLOAD_LENGTH
+            ));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Splits a published message into its topic and message and gives them
+     * to the publish listener, if there is one.
+     *
+     * @throws ProtocolException If the payload has no topic separator.
+     */
+    private void deliverPublished(ByteBuffer payload) throws ProtocolException {
+        var listener = publishListener;
+        if (listener == null) return;
+
+        var text = StandardCharsets.UTF_8.decode(payload).toString();
+        var separator = text.indexOf(ScuffedProtocol.TOPIC_SEPARATOR);
+        if (separator < 0) {
+            throw new ProtocolException(
+                "A published message has no topic separator."
+            );
+        }
+
+        listener.accept(
+            text.substring(0, separator), text.substring(separator + 1)
+        );
+    }
+
+    /**
+     * Completes the request with the given correlation ID.
+     *
+     * @throws ProtocolException If there is no such request.
+     */
+    private void completePending(int correlationId, String reply)
+        throws ProtocolException {
+        var request = pending.remove(correlationId);
+        if (request == null) {
+            throw new ProtocolException(
+                "Received a reply to an unknown request: " + correlationId
+            );
+        }
+
+        request.future().complete(reply);
+    }
+
+    /**
+     * Fails the request with the given correlation ID.
+     *
+     * @throws ProtocolException If there is no such request.
+     */
+    private void failRequest(int correlationId, IOException failure)
+        throws ProtocolException {
+        var request = pending.remove(correlationId);
+        if (request == null) {
+            throw new ProtocolException(
+                "Received an error for an unknown request: " + correlationId
+            );
+        }
+
+        request.future().completeExceptionally(failure);
+    }
+
+    /**
+     * Writes as much of the write queue as the channel will take. If the
+     * socket's send buffer fills up, we ask the loop to tell us when it's
+     * writable again. This must be called on the loop's thread.
+     */
+    private void flush() {
+        if (!channel.isConnected()) return;
+
+        try {
+            boolean done;
+            synchronized (writeQueue) {
+                done = writeQueue.flush(channel);
+            }
+
+            var interestOps = done
+                ? key.interestOps() & ~SelectionKey.OP_WRITE
+                : key.interestOps() | SelectionKey.OP_WRITE;
+            if (interestOps != key.interestOps()) key.interestOps(interestOps);
+        } catch (IOException ex) {
+            connectionLost(ex);
+        }
+    }
+
+    /**
+     * Handles the connection being dropped: unless the client is closing
+     * (or is set not to reconnect), the connection is replaced with a new
+     * one and the requests still waiting for a reply are kept, to be sent
+     * again once it has been made. This must be called on the loop's
+     * thread.
+     *
+     * @param cause Why the connection was lost, or null if the server
+     *              closed it.
+     */
+    private void connectionLost(IOException cause) {
+        synchronized (writeQueue) {
+            if (closed || !config.reconnect) {
+                closeNow(cause);
+                return;
+            }
+
+            // Anything still queued was meant for the old connection: the
+            // requests among it will be replayed from pending, and the rest
+            // (e.g., PONGs and the HELLO) mean nothing to a new connection.
+            // The compressor's state belonged to the old connection too.
+            writeQueue.clear();
+            if (compressor != null) compressor.end();
+            compressor = null;
+            reconnecting = true;
+        }
+
+        closeChannel();
+        readBuffer.clear();
+        scheduleReconnect();
+    }
+
+    /**
+     * Tries to reconnect after a delay that doubles (up to a limit) with
+     * each failed attempt. The delay is picked at random from between zero
+     * and that limit, so that when a server restarts, the clients that were
+     * connected to it don't all come back at the same moment. This must be
+     * called on the loop's thread.
+     */
+    private void scheduleReconnect() {
+        var ceiling = Math.min(
+            config.reconnectMaxDelayMillis,
+            config.reconnectBaseDelayMillis << Math.min(reconnectAttempts, 20)
+        );
+        var delayMillis = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        reconnectAttempts++;
+
+        loop.schedule(
+            TimeUnit.MILLISECONDS.toNanos(delayMillis), this::reconnect
+        );
+    }
+
+    private void reconnect() {
+        if (closedFuture.isDone()) return;
+
+        try {
+            channel = openChannel();
+            connectChannel();
+        } catch (IOException ex) {
+            closeChannel();
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Subscribes to our patterns again, and queues every request that is
+     * still waiting for a reply, in the order they were first sent, on the
+     * new connection. This must be called on the loop's thread.
+     */
+    private void replayPending() {
+        synchronized (writeQueue) {
+            reconnecting = false;
+            if (closed) return;
+
+            if (config.compression) queueHello();
+
+            var requests = new ArrayList<>(pending.entrySet());
+            requests.sort(Comparator.comparingLong(
+                entry -> entry.getValue().sequence()
+            ));
+
+            // The new connection has no subscriptions. Subscribing again
+            // (to a pattern that a pending request is already subscribing
+            // to, or unsubscribing from) is harmless, as the requests that
+            // follow have the final say. Nobody is waiting for these, so
+            // their replies are simply thrown away.
+            for (var pattern : subscriptions) {
+                queueRequest(
+                    ScuffedProtocol.SUBSCRIBE,
+                    pattern,
+                    new CompletableFuture<>()
+                );
+            }
+            for (var entry : requests) {
+                writeRequest(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // The connection is being discarded anyway.
+        }
+    }
+
+    /**
+     * Closes the connection straight away and fails every request that is
+     * still waiting for a reply. This must be called on the loop's thread.
+     *
+     * @param cause Why the connection was closed, or null if the server
+     *              closed it.
+     */
+    void closeNow(IOException cause) {
+        if (closedFuture.isDone()) return;
+
+        closeChannel();
+
+        synchronized (writeQueue) {
+            closed = true;
+            reconnecting = false;
+            if (compressor != null) compressor.end();
+            compressor = null;
+        }
+
+        var failure = new IOException("The connection was closed.", cause);
+        connected.completeExceptionally(failure);
+        failPending(failure);
+        closedFuture.complete(null);
+    }
+
+    /**
+     * Fails every request that is still waiting for a reply.
+     */
+    private void failPending(IOException failure) {
+        for (var correlationId : pending.keySet()) {
+            var request = pending.remove(correlationId);
+            if (request != null) request.future().completeExceptionally(failure);
+        }
+    }
+
+    private static IOException asIOException(Throwable failure) {
+        if (failure instanceof IOException) {
+            // The failure of the connection attempt itself is more useful
+            // than the "connection was closed" wrapper around it.
+            var cause = failure.getCause();
+            return cause instanceof IOException io ? io : (IOException) failure;
+        }
+
+        return new IOException(failure);
+    }
+
+}
@@ -0,0 +1,472 @@
+package com.samjakob.sockets_example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a number of {@link ScuffedClient} connections to a server open, so
+ * that short tasks can borrow one rather than paying for a new connection
+ * (and its TCP handshake) every time.
+ *
+ * A task borrows a connection with {@link #borrow(long, TimeUnit)} and hands
+ * it back by closing the returned {@link Lease}:
+ *
+ * <pre>{@code
+ * try (var lease = pool.borrow(1, TimeUnit.SECONDS)) {
+ *     var reply = lease.client().send("hello").get();
+ * }
+ * }</pre>
+ *
+ * The pool opens connections as they are needed, up to its maximum size.
+ * Once they're all borrowed, further borrowers wait in a queue and are
+ * served strictly in the order they arrived: a returned connection is
+ * handed straight to the borrower at the front of the queue, so a borrower
+ * that arrives later can't take it first.
+ *
+ * An idle connection is checked with a PING before it is lent out, in case
+ * it stopped working whilst it sat in the pool. Connections left idle for
+ * longer than the idle timeout are closed, down to the minimum size.
+ *
+ * This class is thread-safe.
+ */
+public final class ScuffedClientPool implements Closeable {
+
+    /**
+     * A borrowed connection. Closing the lease returns the connection to
+     * the pool (it doesn't close the connection itself).
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final ScuffedClient client;
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        private Lease(ScuffedClient client) {
+            this.client = client;
+        }
+
+        /** Returns the borrowed connection. */
+        public ScuffedClient client() {
+            return client;
+        }
+
+        /**
+         * Returns the connection to the pool. It is safe to call this more
+         * than once.
+         */
+        @Override
+        public void close() {
+            if (returned.compareAndSet(false, true)) giveBack(client);
+        }
+
+    }
+
+    /** An idle connection, and when it was returned to the pool. */
+    private record IdleClient(ScuffedClient client, long idleSinceNanos) {}
+
+    /**
+     * How long an idle connection has to answer a PING before it is
+     * considered broken.
+     */
+    private static final long VALIDATION_TIMEOUT_MILLIS = 1_000;
+
+    private final InetSocketAddress address;
+    private final ClientEventLoop loop;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+
+    /**
+     * Guards {@link #idle}, {@link #waiters}, {@link #size} and
+     * {@link #closed}.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The idle connections, most recently returned first. Lending out the
+     * most recently used connection first leaves the others idle for long
+     * enough to be closed when the pool is busier than it needs to be.
+     */
+    private final ArrayDeque<IdleClient> idle = new ArrayDeque<>();
+
+    /**
+     * The borrowers waiting for a connection, in the order they arrived.
+     * Each is handed either a connection, or null, which means that it may
+     * open a new connection of its own.
+     */
+    private final ArrayDeque<CompletableFuture<ScuffedClient>> waiters =
+        new ArrayDeque<>();
+
+    /**
+     * The number of connections that are open (idle or borrowed) or being
+     * opened.
+     */
+    private int size;
+
+    private boolean closed;
+
+    /** The number of borrows that were given an idle connection. */
+    private final LongAdder hits = new LongAdder();
+
+    /** The number of borrows that had to open a connection or wait. */
+    private final LongAdder misses = new LongAdder();
+
+    /** How long (in microseconds) each borrow took. */
+    private final LogHistogram waitMicros = new LogHistogram();
+
+    /**
+     * Closes idle connections and keeps the pool at its minimum size.
+     */
+    private final ScheduledExecutorService maintainer;
+
+    /**
+     * Creates a pool of connections to the given server that use the shared
+     * client event loop.
+     *
+     * @param address The address of the server.
+     * @param minSize The number of connections to keep open even when they
+     *                are idle.
+     * @param maxSize The most connections that may be open at once.
+     * @param idleTimeoutMillis How long a connection may be idle before it
+     *                          is closed (as long as that doesn't take the
+     *                          pool below its minimum size).
+     */
+    public ScuffedClientPool(
+        InetSocketAddress address,
+        int minSize,
+        int maxSize,
+        long idleTimeoutMillis
+    ) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException(
+                "Expected 0 <= minSize <= maxSize and maxSize >= 1 but got " +
+                "minSize=" + minSize + ", maxSize=" + maxSize
+            );
+        }
+
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException(
+                "The idle timeout must be positive."
+            );
+        }
+
+        this.address = address;
+        this.loop = ClientEventLoop.shared();
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+
+        this.maintainer = Executors.newSingleThreadScheduledExecutor(task -> {
+            var thread = new Thread(task, "scuffed-client-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Check often enough that no connection stays idle for much longer
+        // than the timeout. This also opens the first minSize connections.
+        var period = Math.max(100, idleTimeoutMillis / 2);
+        maintainer.scheduleWithFixedDelay(
+            this::maintain, 0, period, TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Borrows a connection, waiting for one to become free if the pool is
+     * already at its maximum size.
+     *
+     * @param timeout How long to wait for a connection.
+     * @param unit The unit of the timeout.
+     * @return The lease on the connection, which must be closed once the
+     *         connection is no longer needed.
+     * @throws IOException If a new connection couldn't be opened, or the
+     *                     pool is closed.
+     * @throws TimeoutException If no connection became free in time.
+     * @throws InterruptedException If interrupted whilst waiting.
+     */
+    public Lease borrow(long timeout, TimeUnit unit)
+        throws IOException, TimeoutException, InterruptedException {
+        var startNanos = System.nanoTime();
+        var timeoutNanos = unit.toNanos(timeout);
+        var hit = true;
+
+        while (true) {
+            IdleClient reused = null;
+            CompletableFuture<ScuffedClient> waiter = null;
+
+            synchronized (lock) {
+                if (closed) throw new IOException("The pool is closed.");
+
+                if (!idle.isEmpty()) {
+                    reused = idle.pop();
+                } else if (size < maxSize) {
+                    // Reserve a place for the connection we're about to
+                    // open.
+                    size++;
+                } else {
+                    waiter = new CompletableFuture<>();
+                    waiters.add(waiter);
+                }
+            }
+
+            ScuffedClient client;
+            if (reused != null) {
+                client = reused.client();
+
+                boolean valid;
+                try {
+                    valid = validate(client);
+                } catch (InterruptedException ex) {
+                    giveBack(client);
+                    throw ex;
+                }
+
+                if (!valid) {
+                    // Throw the broken connection away and try again.
+                    client.abort();
+                    freePlace();
+                    continue;
+                }
+            } else {
+                hit = false;
+
+                // Either we've reserved a place, or we wait until we're
+                // handed a connection or a place of our own.
+                client = waiter == null
+                    ? null
+                    : await(waiter, timeoutNanos - (System.nanoTime() - startNanos));
+                if (client == null) client = open();
+            }
+
+            (hit ? hits : misses).increment();
+            waitMicros.record((System.nanoTime() - startNanos) / 1_000);
+            return new Lease(client);
+        }
+    }
+
+    /**
+     * Returns the number of borrows that were given an idle connection
+     * straight away.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of borrows that had to open a new connection or
+     * wait for one to be returned.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Describes the pool's current state and statistics, including a
+     * histogram of how long borrows took.
+     */
+    public String describe() {
+        int currentSize, idleCount, waiting;
+        synchronized (lock) {
+            currentSize = size;
+            idleCount = idle.size();
+            waiting = waiters.size();
+        }
+
+        return "pool " + address +
+            ": size=" + currentSize +
+            ", idle=" + idleCount +
+            ", waiting=" + waiting +
+            ", hits=" + hits() +
+            ", misses=" + misses() +
+            ", borrow p50=" + waitMicros.percentile(0.5) + "us" +
+            ", p99=" + waitMicros.percentile(0.99) + "us" +
+            "\n  borrow time histogram (us): " + waitMicros;
+    }
+
+    /**
+     * Closes the pool and its idle connections. Borrowers that are waiting
+     * are failed, and borrowed connections are closed as they're returned.
+     */
+    @Override
+    public void close() {
+        var toClose = new ArrayList<ScuffedClient>();
+        var toFail = new ArrayList<CompletableFuture<ScuffedClient>>();
+
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+
+            while (!idle.isEmpty()) toClose.add(idle.pop().client());
+            size -= toClose.size();
+            toFail.addAll(waiters);
+            waiters.clear();
+        }
+
+        maintainer.shutdownNow();
+
+        var failure = new IOException("The pool is closed.");
+        for (var waiter : toFail) waiter.completeExceptionally(failure);
+        for (var client : toClose) client.close();
+    }
+
+    /**
+     * Opens a new connection, in a place that the caller has already
+     * reserved.
+     */
+    private ScuffedClient open() throws IOException {
+        try {
+            return new ScuffedClient(address, loop);
+        } catch (IOException ex) {
+            freePlace();
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks that a connection still works by sending it a PING.
+     */
+    private static boolean validate(ScuffedClient client)
+        throws InterruptedException {
+        if (client.isClosed()) return false;
+
+        try {
+            client.ping().get(VALIDATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the given waiter is handed a connection (or null, meaning
+     * a place to open one).
+     */
+    private ScuffedClient await(
+        CompletableFuture<ScuffedClient> waiter,
+        long timeoutNanos
+    ) throws IOException, TimeoutException, InterruptedException {
+        try {
+            return waiter.get(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException ex) {
+            throw new IOException("The pool is closed.", ex.getCause());
+        } catch (TimeoutException | InterruptedException ex) {
+            synchronized (lock) {
+                if (waiters.remove(waiter)) throw ex;
+            }
+
+            // We were handed something just as we gave up, so pass it on.
+            // (This can't fail, as the waiter was no longer in the queue.)
+            var client = waiter.join();
+            if (client != null) {
+                giveBack(client);
+            } else {
+                freePlace();
+            }
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Takes back a connection, handing it straight to the first waiting
+     * borrower if there is one.
+     */
+    private void giveBack(ScuffedClient client) {
+        if (client.isClosed()) {
+            freePlace();
+            return;
+        }
+
+        CompletableFuture<ScuffedClient> waiter;
+        synchronized (lock) {
+            waiter = closed ? null : waiters.poll();
+
+            if (waiter == null) {
+                if (closed) {
+                    size--;
+                } else {
+                    idle.push(new IdleClient(client, System.nanoTime()));
+                    return;
+                }
+            }
+        }
+
+        if (waiter != null) {
+            waiter.complete(client);
+        } else {
+            client.close();
+        }
+    }
+
+    /**
+     * Gives up a place in the pool (because a connection was closed, or
+     * couldn't be opened). If a borrower is waiting, the place is handed to
+     * them so that they can open a connection of their own.
+     */
+    private void freePlace() {
+        CompletableFuture<ScuffedClient> waiter;
+        synchronized (lock) {
+            waiter = waiters.poll();
+            if (waiter == null) size--;
+        }
+
+        if (waiter != null) waiter.complete(null);
+    }
+
+    /**
+     * Closes connections that have been idle for too long and opens new
+     * ones if the pool is below its minimum size. Runs periodically on the
+     * {@link #maintainer} thread.
+     */
+    private void maintain() {
+        var expired = new ArrayList<ScuffedClient>();
+        int toOpen;
+
+        synchronized (lock) {
+            if (closed) return;
+
+            // The least recently returned connections are at the end.
+            var now = System.nanoTime();
+            var iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                var candidate = iterator.next();
+                var broken = candidate.client().isClosed();
+                var tooOld = now - candidate.idleSinceNanos() >= idleTimeoutNanos
+                    && size > minSize;
+
+                if (broken || tooOld) {
+                    iterator.remove();
+                    expired.add(candidate.client());
+                    size--;
+                }
+            }
+
+            toOpen = Math.max(0, minSize - size);
+            size += toOpen;
+        }
+
+        for (var client : expired) {
+            if (client.isClosed()) continue;
+            client.close();
+        }
+
+        for (var i = 0; i < toOpen; i++) {
+            try {
+                giveBack(new ScuffedClient(address, loop));
+            } catch (IOException ex) {
+                // We'll try again next time.
+                freePlace();
+            }
+        }
+    }
+
+}
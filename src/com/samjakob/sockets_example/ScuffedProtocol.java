@@ -1,6 +1,456 @@
 package com.samjakob.sockets_example;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Describes how ScuffedProtocol messages are sent over the wire.
+ *
+ * Every message is sent as a 'frame', which looks like this:
+ *
+ * <pre>
+ * +----------------+--------+----------------+------------------------+
+ * | payload length | opcode | correlation ID | payload                |
+ * | (varint)       | (byte) | (varint)       | (payload length bytes) |
+ * +----------------+--------+----------------+------------------------+
+ * </pre>
+ *
+ * Both the payload length and the correlation ID are written as 'varints':
+ * 7 bits of the number per byte, least significant bits first, with the top
+ * bit of each byte set if another byte follows. Small numbers therefore only
+ * need one byte, whilst large ones can still be sent.
+ *
+ * The opcode says what kind of frame it is (see {@link #DATA},
+ * {@link #EXIT}, {@link #PING}, {@link #PONG}, {@link #HELLO},
+ * {@link #SUBSCRIBE}, {@link #UNSUBSCRIBE}, {@link #PUBLISH} and
+ * {@link #ERROR}), so
+ * control signals can never be mistaken for a message that just happens to
+ * contain the same text. The top bit of the opcode byte is a flag (see
+ * {@link #COMPRESSED}) rather than part of the opcode.
+ *
+ * The correlation ID is chosen by whoever sends a request, and is copied
+ * into the reply to that request. This lets a client send many requests
+ * without waiting for each reply, and still tell which reply belongs to
+ * which request. Frames that aren't part of a request/reply pair use
+ * {@link #NO_CORRELATION_ID}.
+ */
 public class ScuffedProtocol {
     /** The port number that ScuffedProtocol communicates on. */
     public static final int PORT = 5894;
+
+    /** A frame carrying a message. The payload is UTF-8 text. */
+    public static final byte DATA = 0;
+    /** Tells the other side that the connection is closing. No payload. */
+    public static final byte EXIT = 1;
+    /** Asks the other side to reply with a {@link #PONG}. */
+    public static final byte PING = 2;
+    /** The reply to a {@link #PING}, echoing its payload. */
+    public static final byte PONG = 3;
+    /**
+     * Sent by a client when it connects to say which optional features
+     * (e.g., compression) it would like to use, and sent back by the server
+     * with the features it agreed to. The payload is a single byte of
+     * feature bits.
+     */
+    public static final byte HELLO = 4;
+    /**
+     * Asks the server to send us every message published to a topic that
+     * matches a pattern (see {@link TopicTrie}). The payload is the pattern,
+     * as UTF-8 text. The server replies with a SUBSCRIBE frame whose
+     * payload is a single byte: 1 if it agreed, or 0 if it refused (e.g.,
+     * because the pattern isn't valid).
+     */
+    public static final byte SUBSCRIBE = 5;
+    /**
+     * Undoes a {@link #SUBSCRIBE} with the same pattern. The server replies
+     * with an UNSUBSCRIBE frame whose payload is a single byte: 1 if there
+     * was such a subscription, or 0 if there wasn't.
+     */
+    public static final byte UNSUBSCRIBE = 6;
+    /**
+     * Publishes a message to a topic. The payload is the topic, a
+     * {@link #TOPIC_SEPARATOR} byte and then the message, all UTF-8 text.
+     *
+     * The server replies with a PUBLISH frame whose payload is the number
+     * of subscribers the message was sent to (as a four byte, big-endian
+     * int, which is -1 if the topic isn't valid), and sends each of those
+     * subscribers the publisher's payload in a PUBLISH frame of its own
+     * with {@link #NO_CORRELATION_ID}.
+     */
+    public static final byte PUBLISH = 7;
+    /**
+     * Sent by the server instead of a reply when it couldn't handle a
+     * request, e.g., because it was too busy or a message handler failed.
+     * The correlation ID is the request's, and the payload says what went
+     * wrong, as UTF-8 text.
+     */
+    public static final byte ERROR = 8;
+
+    /**
+     * Separates the topic from the message in a {@link #PUBLISH} payload.
+     * Topics may therefore not contain this byte.
+     */
+    public static final byte TOPIC_SEPARATOR = 0;
+
+    /**
+     * The flag set in the opcode byte of a frame whose payload is
+     * compressed. See {@link FrameCompressor}.
+     */
+    public static final byte COMPRESSED = (byte) 0x80;
+
+    /** The correlation ID of a frame that isn't a request or a reply. */
+    public static final int NO_CORRELATION_ID = 0;
+
+    /** The largest payload a frame may carry (16 MiB). */
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The largest possible frame header: a five byte varint (enough for any
+     * non-negative int) for the length, the opcode and another five byte
+     * varint for the correlation ID.
+     */
+    public static final int MAX_HEADER_LENGTH = 5 + 1 + 5;
+
+    /**
+     * A decoded frame.
+     *
+     * A single Frame is meant to be reused for every frame read from a
+     * connection, so that decoding doesn't allocate anything per message.
+     * This means the payload is only valid until the next frame is decoded
+     * into the same object.
+     */
+    public static final class Frame {
+        /**
+         * The frame's opcode, e.g., {@link #DATA}, without the
+         * {@link #COMPRESSED} flag.
+         */
+        public byte opcode;
+
+        /** Whether the frame's payload is compressed. */
+        public boolean compressed;
+
+        /**
+         * The frame's correlation ID, or {@link #NO_CORRELATION_ID}.
+         */
+        public int correlationId;
+
+        /**
+         * The frame's payload, from its position to its limit. This is a
+         * view of the buffer the frame was decoded from, not a copy.
+         */
+        public ByteBuffer payload;
+
+        /**
+         * The buffer that {@link #readFrame(InputStream, Frame)} reads
+         * payloads into, which grows as larger payloads arrive, and a
+         * ByteBuffer wrapping it.
+         */
+        private byte[] streamBuffer = new byte[256];
+        private ByteBuffer streamSource = ByteBuffer.wrap(streamBuffer);
+
+        /**
+         * The view that {@link #payload} is set to, and the buffer it is a
+         * view of. Connections decode every frame from the same buffer, so
+         * the view is reused (rather than a new one being created for every
+         * frame) until the buffer changes.
+         */
+        private ByteBuffer view;
+        private ByteBuffer viewSource;
+
+        /**
+         * Points {@link #payload} at the given range of the given buffer.
+         */
+        private void setPayload(ByteBuffer source, int position, int length) {
+            if (viewSource != source) {
+                view = source.duplicate();
+                viewSource = source;
+            }
+
+            // Set the limit first: the new position may be past the old
+            // limit, but never past the new one.
+            view.limit(position + length).position(position);
+            payload = view;
+        }
+    }
+
+    /**
+     * Writes a frame header for a frame with the given opcode, correlation ID
+     * and payload length. The payload itself should be written straight
+     * after it.
+     */
+    public static void writeHeader(
+        ByteBuffer out,
+        byte opcode,
+        int correlationId,
+        int payloadLength
+    ) {
+        writeVarInt(out, payloadLength);
+        out.put(opcode);
+        writeVarInt(out, correlationId);
+    }
+
+    /**
+     * Returns the length of the header of a frame with the given correlation
+     * ID and payload length.
+     */
+    public static int headerLength(int correlationId, int payloadLength) {
+        return varIntLength(payloadLength) + 1 + varIntLength(correlationId);
+    }
+
+    /**
+     * Encodes a whole frame into a new buffer, ready to be written to a
+     * channel.
+     *
+     * @param opcode The frame's opcode.
+     * @param correlationId The frame's correlation ID.
+     * @param payload The frame's payload, from its position to its limit.
+     *                The payload's position is left unchanged.
+     * @return A buffer holding the encoded frame, flipped for reading.
+     */
+    public static ByteBuffer encode(
+        byte opcode,
+        int correlationId,
+        ByteBuffer payload
+    ) {
+        var length = payload.remaining();
+        var out = ByteBuffer.allocate(
+            headerLength(correlationId, length) + length
+        );
+        writeHeader(out, opcode, correlationId, length);
+        out.put(payload.duplicate());
+        return out.flip();
+    }
+
+    /**
+     * Decodes a frame from the given buffer, if a whole frame is available.
+     *
+     * If the buffer holds a whole frame, the frame's opcode, correlation ID
+     * and payload are stored in {@code frame} and the buffer's position is
+     * moved past it. Otherwise, the buffer is left unchanged so that decoding
+     * can be tried again once more data has arrived.
+     *
+     * @param in The buffer to decode from, from its position to its limit.
+     * @param frame The frame to decode into. Its payload will be a view of
+     *              {@code in}.
+     * @return Whether a whole frame was decoded.
+     * @throws ProtocolException If the data isn't a valid frame.
+     */
+    public static boolean decode(ByteBuffer in, Frame frame)
+        throws ProtocolException {
+        var start = in.position();
+
+        var length = readVarInt(in);
+        if (length >= 0) checkPayloadLength(length);
+
+        // We need the whole header and payload before we can decode.
+        if (length < 0 || !in.hasRemaining()) {
+            in.position(start);
+            return false;
+        }
+
+        var opcode = in.get();
+        var correlationId = readVarInt(in);
+        if (correlationId < 0 || in.remaining() < length) {
+            in.position(start);
+            return false;
+        }
+
+        var position = in.position();
+        frame.opcode = (byte) (opcode & ~COMPRESSED);
+        frame.compressed = (opcode & COMPRESSED) != 0;
+        frame.correlationId = correlationId;
+        frame.setPayload(in, position, length);
+        in.position(position + length);
+        return true;
+    }
+
+    /**
+     * Returns the total length (header and payload) of the frame at the
+     * start of the given buffer, without decoding it, so that a buffer big
+     * enough for the whole frame can be prepared before the rest of it
+     * arrives.
+     *
+     * @param in The buffer holding the start of a frame, from its position
+     *           to its limit. Its position is left unchanged.
+     * @return The frame's length in bytes, or -1 if not even the frame's
+     *         header has arrived yet.
+     * @throws ProtocolException If the data isn't a valid frame header.
+     */
+    public static int frameLength(ByteBuffer in) throws ProtocolException {
+        var start = in.position();
+
+        try {
+            var length = readVarInt(in);
+            if (length < 0 || !in.hasRemaining()) return -1;
+            checkPayloadLength(length);
+
+            in.get();
+            if (readVarInt(in) < 0) return -1;
+
+            return in.position() - start + length;
+        } finally {
+            in.position(start);
+        }
+    }
+
+    /**
+     * Reads a frame from the given stream, blocking until the whole frame
+     * has arrived.
+     *
+     * The payload is read into a buffer owned by {@code frame}, which is
+     * reused (and grown when necessary) for every frame read into it.
+     *
+     * @param in The stream to read from. This should be buffered, as the
+     *           header is read one byte at a time.
+     * @param frame The frame to read into.
+     * @throws EOFException If the stream ends, i.e., the connection was
+     *                      closed.
+     * @throws ProtocolException If the data isn't a valid frame.
+     * @throws IOException If the frame couldn't be read.
+     */
+    public static void readFrame(InputStream in, Frame frame)
+        throws IOException {
+        var length = readVarInt(in);
+        checkPayloadLength(length);
+
+        var opcode = in.read();
+        if (opcode < 0) throw new EOFException();
+
+        var correlationId = readVarInt(in);
+
+        if (frame.streamBuffer.length < length) {
+            frame.streamBuffer = new byte[Math.max(
+                length, frame.streamBuffer.length * 2
+            )];
+            frame.streamSource = ByteBuffer.wrap(frame.streamBuffer);
+        }
+
+        var read = in.readNBytes(frame.streamBuffer, 0, length);
+        if (read < length) throw new EOFException();
+
+        frame.opcode = (byte) (opcode & ~COMPRESSED);
+        frame.compressed = (opcode & COMPRESSED) != 0;
+        frame.correlationId = correlationId;
+        frame.setPayload(frame.streamSource, 0, length);
+    }
+
+    /**
+     * Writes a frame to the given stream. The stream is not flushed.
+     *
+     * @param out The stream to write to.
+     * @param opcode The frame's opcode.
+     * @param correlationId The frame's correlation ID.
+     * @param payload The array holding the frame's payload.
+     * @param offset The index of the first byte of the payload.
+     * @param length The length of the payload.
+     * @throws IOException If the frame couldn't be written.
+     */
+    public static void writeFrame(
+        OutputStream out,
+        byte opcode,
+        int correlationId,
+        byte[] payload,
+        int offset,
+        int length
+    ) throws IOException {
+        checkPayloadLength(length);
+
+        var header = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+        writeHeader(header, opcode, correlationId, length);
+        out.write(header.array(), 0, header.position());
+        out.write(payload, offset, length);
+    }
+
+    /**
+     * Writes a frame with no payload and no correlation ID to the given
+     * stream. The stream is not flushed.
+     */
+    public static void writeFrame(OutputStream out, byte opcode)
+        throws IOException {
+        out.write(0);
+        out.write(opcode);
+        out.write(NO_CORRELATION_ID);
+    }
+
+    /**
+     * Returns the number of bytes needed to write the given value as a
+     * varint.
+     */
+    public static int varIntLength(int value) {
+        var length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static void writeVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads a varint from the given buffer, returning -1 if the buffer ends
+     * before the varint does.
+     */
+    private static int readVarInt(ByteBuffer in) throws ProtocolException {
+        var value = 0;
+
+        for (var shift = 0; ; shift += 7) {
+            if (!in.hasRemaining()) return -1;
+
+            var b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return checkVarInt(value);
+
+            if (shift == 28) {
+                throw new ProtocolException("A varint in the frame is too long.");
+            }
+        }
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        var value = 0;
+
+        for (var shift = 0; ; shift += 7) {
+            var b = in.read();
+            if (b < 0) throw new EOFException();
+
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return checkVarInt(value);
+
+            if (shift == 28) {
+                throw new ProtocolException("A varint in the frame is too long.");
+            }
+        }
+    }
+
+    /**
+     * Checks that a decoded varint fits in a non-negative int, which is all
+     * that ScuffedProtocol ever sends.
+     */
+    private static int checkVarInt(int value) throws ProtocolException {
+        if (value < 0) {
+            throw new ProtocolException("A varint in the frame is negative.");
+        }
+        return value;
+    }
+
+    private static void checkPayloadLength(int length)
+        throws ProtocolException {
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException(
+                "The frame payload is " + length + " bytes but the most " +
+                "allowed is " + MAX_PAYLOAD_LENGTH + "."
+            );
+        }
+    }
 }
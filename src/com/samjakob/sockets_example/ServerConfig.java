@@ -0,0 +1,415 @@
+package com.samjakob.sockets_example;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Holds the options that the server was started with.
+ *
+ * These are parsed from the command line arguments given to
+ * {@link MyServer#main(String[])}, which are expected to be in the form
+ * {@code --option=value}. Anything that isn't specified keeps the default
+ * value declared on the field.
+ */
+class ServerConfig {
+
+    /**
+     * The different ways the server can handle its connections.
+     */
+    enum Mode {
+        /**
+         * The original engine: one platform thread is started for every
+         * accepted socket and runs a {@link MyServerDelegate} for it.
+         */
+        THREADS,
+        /**
+         * Like {@link #THREADS}, but each {@link MyServerDelegate} runs on a
+         * virtual thread (which requires Java 21 or newer).
+         */
+        VIRTUAL,
+        /**
+         * A non-blocking engine where a small, fixed set of event-loop
+         * threads (see {@link EventLoop}) serve every connection using a
+         * {@link java.nio.channels.Selector}.
+         */
+        NIO,
+        /**
+         * A non-blocking engine with one event loop that accepts connections
+         * and several that serve them (see {@link MyReactorServer}).
+         */
+        REACTOR,
+        /**
+         * A non-blocking engine where every event loop has its own listening
+         * socket on the same port (see {@link MyReusePortServer}).
+         */
+        REUSEPORT
+    }
+
+    /** The engine used to serve connections. */
+    Mode mode = Mode.THREADS;
+
+    /**
+     * The number of event-loop threads used by the non-blocking engines.
+     * Defaults to one per available processor.
+     */
+    int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How long (in milliseconds) the server waits for data before closing
+     * an idle connection. Zero means wait forever.
+     */
+    int readTimeoutMillis = 0;
+
+    /**
+     * How often (in milliseconds) an idle connection is sent a PING to
+     * check that the client is still there. Zero means never.
+     */
+    int heartbeatMillis = 0;
+
+    /**
+     * The number of heartbeats in a row a client may leave unanswered
+     * before its connection is closed.
+     */
+    int heartbeatMisses = 3;
+
+    /**
+     * The resolution (in milliseconds) of the timing wheel each event loop
+     * uses for its connections' timeouts (see {@link TimingWheel}).
+     */
+    int timerResolutionMillis = 10;
+
+    /**
+     * How the {@link Mode#REACTOR} engine spreads connections over its
+     * worker loops.
+     */
+    MyReactorServer.Balancing balancing =
+        MyReactorServer.Balancing.ROUND_ROBIN;
+
+    /**
+     * How often (in seconds) to print the server's metrics. Zero means
+     * never.
+     */
+    int metricsIntervalSeconds = 0;
+
+    /**
+     * Whether clients may ask for their connection to be compressed.
+     */
+    boolean compression = true;
+
+    /**
+     * The size (in bytes) a reply must be before it is compressed, on
+     * connections that agreed to compression.
+     */
+    int compressionThreshold = FrameCompressor.DEFAULT_THRESHOLD;
+
+    /**
+     * Whether to report buffers that are leased from the {@link BufferPool}
+     * but never given back. This records a stack trace for every lease, so
+     * it is only meant for debugging.
+     */
+    boolean leakDetection = false;
+
+    /**
+     * The most data (in KiB) that may be waiting to be written to a client
+     * before messages pushed to it (e.g., published to a topic it
+     * subscribed to) are dropped, so that a client that reads slowly can't
+     * make the server hold on to every message it hasn't read yet.
+     */
+    int pushBacklogKib = 4096;
+
+    /**
+     * The number of threads that run
+     * {@link MessageHandler.Execution#CPU_HEAVY} handlers. Defaults to one
+     * per available processor, as more threads than that could only take
+     * turns.
+     */
+    int cpuWorkers = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The most messages that may wait for a CPU worker before more are
+     * turned away.
+     */
+    int cpuQueue = 1024;
+
+    /**
+     * The number of threads that run
+     * {@link MessageHandler.Execution#BLOCKING} handlers. These spend most
+     * of their time waiting, so there can be many more of them than there
+     * are processors.
+     */
+    int blockingWorkers = 32;
+
+    /**
+     * The most messages that may wait for a blocking worker before more are
+     * turned away.
+     */
+    int blockingQueue = 1024;
+
+    /**
+     * How many of one connection's requests the {@link Mode#THREADS} and
+     * {@link Mode#VIRTUAL} engines handle at once. With more than one, each
+     * connection's messages are handled in a {@link Bulkhead} (the CPU one,
+     * unless the handlers need the blocking one) and their replies are put
+     * back in order by a {@link Resequencer} of this size, so this is also
+     * the most replies a connection holds whilst it waits for an earlier
+     * one. A message is never refused because the bulkhead is busy: the
+     * connection waits for room in its queue instead. One means that
+     * messages are handled one at a time, in turn.
+     */
+    int parallelRequests = 1;
+
+    /**
+     * The bulkheads that have been started, by the kind of handler they
+     * run. Guarded by {@code this}.
+     */
+    private final Map<MessageHandler.Execution, Bulkhead> bulkheads =
+        new EnumMap<>(MessageHandler.Execution.class);
+
+    /**
+     * The ports the server listens on, each with the pipeline of
+     * {@link MessageHandler}s that its messages pass through (see
+     * {@link HandlerPipeline}). The pipelines are put together as the
+     * options are parsed, so that unknown handlers are reported straight
+     * away and nothing needs to be looked up once the server is running.
+     */
+    final Map<Integer, MessageHandler> pipelines = new LinkedHashMap<>(
+        Map.of(ScuffedProtocol.PORT, HandlerPipeline.defaultPipeline())
+    );
+
+    /**
+     * Parses the given command line arguments into a {@link ServerConfig}.
+     *
+     * @param args The command line arguments, e.g., {@code --mode=nio}.
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException If an argument is not recognized or
+     *                                  has an invalid value.
+     */
+    static ServerConfig parse(String[] args) {
+        var config = new ServerConfig();
+
+        for (var arg : args) {
+            // Split the argument into its name and value on the first '='.
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException(
+                    "Expected an argument of the form --option=value but " +
+                    "got: " + arg
+                );
+            }
+
+            var name = arg.substring(2, separator);
+            var value = arg.substring(separator + 1);
+
+            switch (name) {
+                case "mode" -> config.mode = parseMode(value);
+                case "loops" -> config.eventLoops = parsePositive(name, value);
+                case "read-timeout" ->
+                    config.readTimeoutMillis = parseNonNegative(name, value);
+                case "heartbeat" ->
+                    config.heartbeatMillis = parseNonNegative(name, value);
+                case "heartbeat-misses" ->
+                    config.heartbeatMisses = parsePositive(name, value);
+                case "timer-resolution" ->
+                    config.timerResolutionMillis = parsePositive(name, value);
+                case "balance" -> config.balancing = parseBalancing(value);
+                case "metrics" ->
+                    config.metricsIntervalSeconds = parseNonNegative(name, value);
+                case "compression" -> config.compression = parseSwitch(name, value);
+                case "compression-threshold" ->
+                    config.compressionThreshold = parseNonNegative(name, value);
+                case "leak-detection" ->
+                    config.leakDetection = parseSwitch(name, value);
+                case "push-backlog" ->
+                    config.pushBacklogKib = parsePositive(name, value);
+                case "pipeline" -> config.parsePipeline(name, value);
+                case "cpu-workers" ->
+                    config.cpuWorkers = parsePositive(name, value);
+                case "cpu-queue" -> config.cpuQueue = parsePositive(name, value);
+                case "blocking-workers" ->
+                    config.blockingWorkers = parsePositive(name, value);
+                case "blocking-queue" ->
+                    config.blockingQueue = parsePositive(name, value);
+                case "parallel-requests" ->
+                    config.parallelRequests = parsePositive(name, value);
+                default -> throw new IllegalArgumentException(
+                    "Unknown option: --" + name
+                );
+            }
+        }
+
+        return config;
+    }
+
+    /** Returns a short description of the accepted arguments. */
+    static String usage() {
+        return String.join("\n",
+            "Usage: MyServer [--option=value ...]",
+            "  --mode=threads|virtual|nio|reactor|reuseport",
+            "                       the engine used to serve connections",
+            "                       (default: threads)",
+            "  --loops=N            the number of event-loop threads for",
+            "                       the non-blocking engines",
+            "                       (default: one per processor)",
+            "  --read-timeout=MS    close a client that sends nothing for",
+            "                       this long",
+            "                       (default: 0, i.e., never)",
+            "  --heartbeat=MS       send an idle client a PING this often",
+            "                       (default: 0, i.e., never)",
+            "  --heartbeat-misses=N close a client that leaves this many",
+            "                       PINGs in a row unanswered (default: 3)",
+            "  --timer-resolution=MS",
+            "                       how precisely the non-blocking engines",
+            "                       time out connections (default: 10)",
+            "  --balance=round-robin|least-loaded",
+            "                       how the reactor engine assigns",
+            "                       connections to its workers",
+            "                       (default: round-robin)",
+            "  --metrics=SECONDS    print the server's metrics this often",
+            "                       (default: 0, i.e., never)",
+            "  --compression=on|off whether clients may ask for compression",
+            "                       (default: on)",
+            "  --compression-threshold=BYTES",
+            "                       the smallest reply that is compressed",
+            "                       (default: " +
+                FrameCompressor.DEFAULT_THRESHOLD + ")",
+            "  --leak-detection=on|off",
+            "                       report pooled buffers that are never",
+            "                       given back (slow; default: off)",
+            "  --push-backlog=KIB   drop messages pushed to a client that",
+            "                       already has this much unwritten data",
+            "                       (default: 4096)",
+            "  --pipeline=[PORT:]HANDLER[,HANDLER...]",
+            "                       the message handlers for a port (which",
+            "                       the server then listens on too); may be",
+            "                       repeated (default: " +
+                ScuffedProtocol.PORT + ":upper-case)",
+            "  --cpu-workers=N      threads for CPU-heavy handlers",
+            "                       (default: one per processor)",
+            "  --cpu-queue=N        messages that may wait for them before",
+            "                       more are refused (default: 1024)",
+            "  --blocking-workers=N threads for blocking handlers",
+            "                       (default: 32)",
+            "  --blocking-queue=N   messages that may wait for them before",
+            "                       more are refused (default: 1024)",
+            "  --parallel-requests=N",
+            "                       handle up to N of a connection's",
+            "                       messages at once, replying in order",
+            "                       (threads and virtual engines;",
+            "                       default: 1)"
+        );
+    }
+
+    /**
+     * Returns the ports the server listens on, as a list for messages,
+     * e.g., {@code 5894, 5895}.
+     */
+    String describePorts() {
+        var ports = new StringBuilder();
+        for (var port : pipelines.keySet()) {
+            if (ports.length() > 0) ports.append(", ");
+            ports.append(port);
+        }
+        return ports.toString();
+    }
+
+    /**
+     * Returns the pipeline of message handlers for the given port.
+     */
+    MessageHandler pipelineFor(int port) {
+        return pipelines.getOrDefault(port, HandlerPipeline.defaultPipeline());
+    }
+
+    /**
+     * Returns the bulkhead that runs the given kind of handler, starting it
+     * (and adding it to the {@link ServerMetrics}) the first time it is
+     * asked for, so that a server whose handlers are all quick starts no
+     * extra threads. This may be called from any thread.
+     *
+     * @return The bulkhead, or {@code null} for
+     *         {@link MessageHandler.Execution#INLINE} handlers, which are
+     *         run where their messages are received.
+     */
+    synchronized Bulkhead bulkheadFor(MessageHandler.Execution execution) {
+        if (execution == MessageHandler.Execution.INLINE) return null;
+
+        return bulkheads.computeIfAbsent(execution, kind -> {
+            var bulkhead = kind == MessageHandler.Execution.CPU_HEAVY
+                ? new Bulkhead("cpu-worker", cpuWorkers, cpuQueue)
+                : new Bulkhead("blocking-worker", blockingWorkers, blockingQueue);
+            ServerMetrics.register(bulkhead::describe);
+            return bulkhead;
+        });
+    }
+
+    /**
+     * Parses a {@code [PORT:]HANDLER[,HANDLER...]} option, setting the
+     * pipeline of the given port (or, without one, of the protocol's usual
+     * port).
+     */
+    private void parsePipeline(String name, String value) {
+        var separator = value.indexOf(':');
+        var port = separator < 0
+            ? ScuffedProtocol.PORT
+            : parsePositive(name, value.substring(0, separator));
+        if (port > 65535) {
+            throw new IllegalArgumentException(
+                "--" + name + " must name a port below 65536, but got: " + port
+            );
+        }
+
+        pipelines.put(port, HandlerPipeline.parse(value.substring(separator + 1)));
+    }
+
+    private static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown mode: " + value);
+        }
+    }
+
+    private static MyReactorServer.Balancing parseBalancing(String value) {
+        try {
+            return MyReactorServer.Balancing.valueOf(
+                value.toUpperCase(Locale.ROOT).replace('-', '_')
+            );
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown balancing: " + value);
+        }
+    }
+
+    static boolean parseSwitch(String name, String value) {
+        return switch (value) {
+            case "on" -> true;
+            case "off" -> false;
+            default -> throw new IllegalArgumentException(
+                "--" + name + " must be on or off but got: " + value
+            );
+        };
+    }
+
+    static int parsePositive(String name, String value) {
+        var parsed = parseNonNegative(name, value);
+        if (parsed > 0) return parsed;
+
+        throw new IllegalArgumentException(
+            "--" + name + " must be a positive integer but got: " + value
+        );
+    }
+
+    static int parseNonNegative(String name, String value) {
+        try {
+            var parsed = Integer.parseInt(value);
+            if (parsed >= 0) return parsed;
+        } catch (NumberFormatException ignored) {
+            // Fall through to the exception below.
+        }
+
+        throw new IllegalArgumentException(
+            "--" + name + " must be a non-negative integer but got: " + value
+        );
+    }
+
+}
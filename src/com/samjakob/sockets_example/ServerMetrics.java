@@ -0,0 +1,182 @@
+package com.samjakob.sockets_example;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Collects the statistics that the server's engines publish about
+ * themselves and periodically prints them.
+ *
+ * Each engine registers a source that describes its current state (e.g.,
+ * how many connections each event loop is serving) and the reporter started
+ * by {@link #startReporting(int)} prints every source on an interval.
+ */
+final class ServerMetrics {
+
+    private ServerMetrics() {}
+
+    /**
+     * The registered sources, each of which returns a line (or lines) of
+     * text describing some part of the server.
+     */
+    private static final List<Supplier<String>> sources =
+        new CopyOnWriteArrayList<>(List.of(
+            ServerMetrics::describeWrites,
+            ServerMetrics::describeHeartbeats,
+            () -> BufferPool.shared().describe(),
+            () -> TopicHub.shared().describe()
+        ));
+
+    /**
+     * The number of write system calls made to send data to clients.
+     */
+    private static final LongAdder writeCalls = new LongAdder();
+
+    /**
+     * The number of bytes sent to clients.
+     */
+    private static final LongAdder bytesWritten = new LongAdder();
+
+    /**
+     * The number of heartbeat PINGs sent to idle clients.
+     */
+    private static final LongAdder heartbeatsSent = new LongAdder();
+
+    /**
+     * The number of connections closed because the client stopped
+     * answering heartbeats.
+     */
+    private static final LongAdder reapedConnections = new LongAdder();
+
+    /**
+     * The number of pushed messages dropped because their client already
+     * had too much data waiting to be written.
+     */
+    private static final LongAdder droppedPushes = new LongAdder();
+
+    /**
+     * Adds a source of statistics to be included in every report.
+     *
+     * @param source Returns the current statistics as text.
+     */
+    static void register(Supplier<String> source) {
+        sources.add(source);
+    }
+
+    /**
+     * Returns the current statistics from every registered source.
+     */
+    static String report() {
+        var report = new StringBuilder("--- metrics ---");
+        for (var source : sources) {
+            report.append('\n').append(source.get());
+        }
+        return report.toString();
+    }
+
+    /**
+     * Starts a daemon thread that prints {@link #report()} every given
+     * number of seconds.
+     *
+     * @param intervalSeconds The number of seconds between reports.
+     */
+    static void startReporting(int intervalSeconds) {
+        var reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                System.out.println(report());
+            }
+        }, "metrics-reporter");
+
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Records a single write system call that sent the given number of
+     * bytes. This may be called from any thread.
+     */
+    static void recordWrite(long bytes) {
+        writeCalls.increment();
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Records a heartbeat PING sent to an idle client. This may be called
+     * from any thread.
+     */
+    static void recordHeartbeat() {
+        heartbeatsSent.increment();
+    }
+
+    /**
+     * Records a connection that was closed because its client stopped
+     * answering heartbeats. This may be called from any thread.
+     */
+    static void recordReaped() {
+        reapedConnections.increment();
+    }
+
+    /**
+     * Records a pushed message that was dropped because its client wasn't
+     * keeping up. This may be called from any thread.
+     */
+    static void recordDroppedPush() {
+        droppedPushes.increment();
+    }
+
+    /** Returns the number of connections reaped so far. */
+    static long reapedConnections() {
+        return reapedConnections.sum();
+    }
+
+    /**
+     * Describes the heartbeats sent so far and how many connections were
+     * closed because they went unanswered.
+     */
+    private static String describeHeartbeats() {
+        return "heartbeats: sent=" + heartbeatsSent.sum() +
+            ", reaped connections=" + reapedConnections.sum();
+    }
+
+    /**
+     * Describes the writes made so far: how many there were and how many
+     * bytes they sent on average. The higher the average, the better the
+     * replies are being coalesced. Pushed messages that were dropped rather
+     * than written are counted too.
+     */
+    private static String describeWrites() {
+        var calls = writeCalls.sum();
+        var bytes = bytesWritten.sum();
+        return "writes: syscalls=" + calls +
+            ", bytes=" + bytes +
+            ", avg bytes/write=" + (calls == 0 ? 0 : bytes / calls) +
+            ", dropped pushes=" + droppedPushes.sum();
+    }
+
+    /**
+     * Describes the load on an event loop: the number of connections it is
+     * serving, the number of tasks waiting in its queue, how often it has
+     * been woken up to run tasks and the memory held by its connections'
+     * read buffers (in total and per connection).
+     */
+    static String describe(EventLoop loop) {
+        var connections = loop.connectionCount();
+        var receiveBytes = loop.receiveBufferBytes();
+        return loop.name() +
+            ": connections=" + connections +
+            ", queued=" + loop.queueDepth() +
+            ", wakeups=" + loop.wakeups() +
+            ", read buffers=" + receiveBytes + " bytes" +
+            " (" + (connections == 0 ? 0 : receiveBytes / connections) +
+            " per connection)";
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.samjakob.sockets_example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame that is sent to many connections at once (e.g., a
+ * published message on its way to every subscriber), without being copied
+ * for each of them.
+ *
+ * Every connection that the frame is queued on holds a reference to it, and
+ * writes from a {@link #view()} of its own, so that each can write at its
+ * own pace. The frame counts its references, and once the last connection
+ * has written it (or been closed) and released its reference, the buffer
+ * goes back to the {@link BufferPool}.
+ *
+ * This class is thread-safe: the connections holding references may be
+ * served by different event loops.
+ */
+final class SharedFrame implements Releasable {
+
+    /** The encoded frame, which is never changed once it's been shared. */
+    private final ByteBuffer frame;
+
+    /** The lease that owns {@link #frame}, or null if it isn't pooled. */
+    private final BufferPool.Lease lease;
+
+    /** The number of references still held. */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Wraps an already encoded frame that doesn't belong to the pool (e.g.,
+     * a single pushed message). The caller holds the first reference.
+     *
+     * @param frame The encoded frame, from its position to its limit.
+     */
+    SharedFrame(ByteBuffer frame) {
+        this(frame, null);
+    }
+
+    private SharedFrame(ByteBuffer frame, BufferPool.Lease lease) {
+        this.frame = frame;
+        this.lease = lease;
+    }
+
+    /**
+     * Encodes a frame into a buffer leased from the given pool. The caller
+     * holds the first reference.
+     *
+     * @param pool The pool to lease the buffer from.
+     * @param opcode The frame's opcode.
+     * @param correlationId The frame's correlation ID.
+     * @param payload The frame's payload, from its position to its limit.
+     *                The payload's position is left unchanged.
+     * @return The frame.
+     */
+    static SharedFrame encode(
+        BufferPool pool,
+        byte opcode,
+        int correlationId,
+        ByteBuffer payload
+    ) {
+        var length = payload.remaining();
+        var lease = pool.lease(
+            ScuffedProtocol.headerLength(correlationId, length) + length
+        );
+
+        var out = lease.buffer();
+        ScuffedProtocol.writeHeader(out, opcode, correlationId, length);
+        out.put(payload.duplicate());
+        return new SharedFrame(out.flip(), lease);
+    }
+
+    /**
+     * Takes another reference to the frame, e.g., before queuing it on
+     * another connection. This must only be called by someone who already
+     * holds a reference, so the frame can't have been released.
+     */
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Returns a new view of the encoded frame, with its own position, for
+     * a connection to write from.
+     */
+    ByteBuffer view() {
+        return frame.duplicate();
+    }
+
+    /** Returns the length of the encoded frame, in bytes. */
+    int length() {
+        return frame.remaining();
+    }
+
+    /**
+     * Gives up a reference to the frame, giving the buffer back to the pool
+     * if it was the last one.
+     *
+     * @throws IllegalStateException If every reference was already
+     *                               released.
+     */
+    @Override
+    public void release() {
+        var remaining = references.decrementAndGet();
+        if (remaining > 0) return;
+        if (remaining < 0) {
+            throw new IllegalStateException("The frame was already released.");
+        }
+
+        if (lease != null) lease.release();
+    }
+
+}
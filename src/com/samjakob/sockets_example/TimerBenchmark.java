@@ -0,0 +1,137 @@
+package com.samjakob.sockets_example;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A runnable benchmark that compares {@link TimingWheel} with a
+ * {@link ScheduledThreadPoolExecutor} for the way a server uses timeouts:
+ * a large number of them are live at once, and most are cancelled (because
+ * the connection did something) and replaced long before they are due.
+ *
+ * Each run first schedules the given number of timeouts, with delays spread
+ * between 5 and 60 seconds so that none of them fire, and then repeatedly
+ * cancels a random one and schedules a replacement. It reports the average
+ * time taken by each cancel-and-replace.
+ *
+ * Usage: {@code TimerBenchmark [--timers=N] [--operations=N]}.
+ */
+public class TimerBenchmark {
+
+    private static final Runnable NOTHING = () -> {};
+
+    public static void main(String[] args) throws InterruptedException {
+        var timers = 100_000;
+        var operations = 2_000_000;
+
+        for (var arg : args) {
+            if (arg.startsWith("--timers=")) {
+                timers = ServerConfig.parsePositive(
+                    "timers", arg.substring("--timers=".length())
+                );
+            } else if (arg.startsWith("--operations=")) {
+                operations = ServerConfig.parsePositive(
+                    "operations", arg.substring("--operations=".length())
+                );
+            } else {
+                System.err.println("Unknown option: " + arg);
+                System.err.println(
+                    "Usage: TimerBenchmark [--timers=N] [--operations=N]"
+                );
+                return;
+            }
+        }
+
+        System.out.printf(
+            "%,d live timers, %,d cancel-and-replace operations%n%n",
+            timers, operations
+        );
+
+        // Run each one twice, and only report the second, so that the JIT
+        // compiler has warmed up.
+        for (var round = 0; round < 2; round++) {
+            var wheel = measureWheel(timers, operations);
+            var executor = measureExecutor(timers, operations);
+
+            if (round == 1) {
+                System.out.printf("%-32s %10.1f ns/op%n", "TimingWheel", wheel);
+                System.out.printf(
+                    "%-32s %10.1f ns/op%n",
+                    "ScheduledThreadPoolExecutor", executor
+                );
+            }
+        }
+    }
+
+    /** Returns the average nanoseconds per cancel-and-replace. */
+    private static double measureWheel(int timers, int operations) {
+        var random = new Random(1);
+
+        // The same settings as an event loop: 10 ms ticks, 512 slots.
+        var wheel = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(10), 512);
+        var live = new TimingWheel.Timeout[timers];
+        for (var i = 0; i < timers; i++) {
+            live[i] = wheel.schedule(delayNanos(random), NOTHING);
+        }
+
+        var start = System.nanoTime();
+        for (var i = 0; i < operations; i++) {
+            var index = random.nextInt(timers);
+            live[index].cancel();
+            live[index] = wheel.schedule(delayNanos(random), NOTHING);
+
+            // An event loop advances its wheel after every selection, so do
+            // the same every so often.
+            if ((i & 1023) == 0) wheel.advance(System.nanoTime());
+        }
+        var elapsed = System.nanoTime() - start;
+
+        if (wheel.size() != timers) {
+            throw new IllegalStateException("The wheel lost track of a timer.");
+        }
+        return elapsed / (double) operations;
+    }
+
+    /** Returns the average nanoseconds per cancel-and-replace. */
+    private static double measureExecutor(int timers, int operations)
+        throws InterruptedException {
+        var random = new Random(1);
+
+        // Without this, a cancelled task stays in the executor's queue until
+        // its delay has passed, so the queue would grow with every
+        // operation.
+        var executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+
+        try {
+            var live = new ScheduledFuture<?>[timers];
+            for (var i = 0; i < timers; i++) {
+                live[i] = executor.schedule(
+                    NOTHING, delayNanos(random), TimeUnit.NANOSECONDS
+                );
+            }
+
+            var start = System.nanoTime();
+            for (var i = 0; i < operations; i++) {
+                var index = random.nextInt(timers);
+                live[index].cancel(false);
+                live[index] = executor.schedule(
+                    NOTHING, delayNanos(random), TimeUnit.NANOSECONDS
+                );
+            }
+            return (System.nanoTime() - start) / (double) operations;
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /** Returns a random delay between 5 and 60 seconds. */
+    private static long delayNanos(Random random) {
+        return TimeUnit.SECONDS.toNanos(5)
+            + (long) (random.nextDouble() * TimeUnit.SECONDS.toNanos(55));
+    }
+
+}
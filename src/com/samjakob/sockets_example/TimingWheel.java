@@ -0,0 +1,260 @@
+package com.samjakob.sockets_example;
+
+/**
+ * Runs tasks after a delay, like a {@link java.util.concurrent.ScheduledExecutorService},
+ * but cheaply enough that every connection can have timeouts of its own.
+ *
+ * Time is divided into 'ticks' of a fixed length (the wheel's resolution).
+ * The wheel is an array of slots, one per tick, that wraps around like the
+ * face of a clock. A timeout due at some tick goes into that tick's slot
+ * (a timeout due more than one turn of the wheel away just sits in its slot
+ * until the wheel comes back around to it for the right time). Each slot is
+ * a doubly-linked list, so both adding and cancelling a timeout take the
+ * same, small amount of time no matter how many timeouts there are – unlike
+ * a priority queue, which gets slower as it grows.
+ *
+ * The price is precision: a timeout may run up to one tick late. That's
+ * fine for things like idle connection timeouts, which are usually
+ * cancelled long before they're due anyway.
+ *
+ * The wheel doesn't have a thread of its own. Instead, its owner (e.g., an
+ * {@link EventLoop}) calls {@link #advance(long)} regularly, which runs
+ * every task that has come due. This class is not thread-safe, so it must
+ * only be used by that owner's thread.
+ */
+final class TimingWheel {
+
+    /**
+     * A scheduled task, which can be cancelled until it has run.
+     */
+    static final class Timeout {
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+
+        /** The tick on which the task should run. */
+        private final long deadlineTick;
+
+        /**
+         * The neighbouring timeouts in the same slot. Whilst the task is
+         * waiting to be run by {@link #advance(long)}, next links it to the
+         * next task to run instead.
+         */
+        private Timeout previous;
+        private Timeout next;
+
+        private State state = State.SCHEDULED;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Stops the task from running, if it hasn't already.
+         *
+         * @return Whether the task was stopped from running.
+         */
+        boolean cancel() {
+            switch (state) {
+                case SCHEDULED -> wheel.remove(this);
+                case EXPIRED -> {}
+                default -> {
+                    return false;
+                }
+            }
+
+            state = State.CANCELLED;
+            return true;
+        }
+
+        /** Returns whether the task is still waiting to run. */
+        boolean isPending() {
+            return state == State.SCHEDULED || state == State.EXPIRED;
+        }
+
+    }
+
+    private enum State {
+        /** In one of the wheel's slots. */
+        SCHEDULED,
+        /** Taken out of its slot because it is due, but not yet run. */
+        EXPIRED,
+        /** Run, or about to be. */
+        DONE,
+        CANCELLED
+    }
+
+    /** The length of a tick, in nanoseconds. */
+    private final long tickNanos;
+
+    /**
+     * The first timeout in each slot. The number of slots is a power of two
+     * so that a tick's slot can be found with a mask rather than a division.
+     */
+    private final Timeout[] slots;
+
+    private final int mask;
+
+    /** The time (in {@link System#nanoTime()} terms) of tick zero. */
+    private final long startNanos;
+
+    /** The last tick that {@link #advance(long)} has run the tasks of. */
+    private long currentTick;
+
+    /** The number of scheduled (and not yet cancelled) timeouts. */
+    private int size;
+
+    /**
+     * @param tickNanos The resolution of the wheel, in nanoseconds.
+     * @param slotCount The number of slots, which is rounded up to a power
+     *                  of two. Timeouts are spread across the slots, so
+     *                  this should be larger for longer timeouts.
+     */
+    TimingWheel(long tickNanos, int slotCount) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("The tick must be positive.");
+        }
+
+        var powerOfTwo = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.slots = new Timeout[powerOfTwo];
+        this.mask = powerOfTwo - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Schedules a task to run after (at least) the given delay.
+     *
+     * @param delayNanos The delay, in nanoseconds.
+     * @param task The task to run.
+     * @return The timeout, which can be used to cancel the task.
+     */
+    Timeout schedule(long delayNanos, Runnable task) {
+        var due = System.nanoTime() - startNanos + Math.max(0, delayNanos);
+
+        // Round up, so that the task never runs early, and never schedule
+        // anything for a tick that has already been run.
+        var deadlineTick = Math.max(
+            currentTick + 1,
+            (due + tickNanos - 1) / tickNanos
+        );
+
+        var timeout = new Timeout(this, task, deadlineTick);
+        var slot = (int) (deadlineTick & mask);
+
+        timeout.next = slots[slot];
+        if (timeout.next != null) timeout.next.previous = timeout;
+        slots[slot] = timeout;
+
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Runs every task that is due at the given time.
+     *
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     */
+    void advance(long nowNanos) {
+        var targetTick = (nowNanos - startNanos) / tickNanos;
+        if (targetTick <= currentTick) return;
+
+        // If we've fallen more than a whole turn behind, every slot only
+        // needs to be visited once.
+        var ticks = Math.min(targetTick - currentTick, slots.length);
+        var firstTick = currentTick + 1;
+
+        // Anything scheduled by the tasks we run must be after the target,
+        // so that it isn't put in a slot we've already visited.
+        currentTick = targetTick;
+
+        for (var tick = firstTick; tick < firstTick + ticks; tick++) {
+            runExpired(expire((int) (tick & mask), targetTick));
+        }
+    }
+
+    /**
+     * Returns how long (in nanoseconds) until the next tick, or -1 if
+     * nothing is scheduled (so there's no need to wake up for it).
+     *
+     * @param nowNanos The current time, from {@link System#nanoTime()}.
+     */
+    long nanosUntilNextTick(long nowNanos) {
+        if (size == 0) return -1;
+        return Math.max(0, startNanos + (currentTick + 1) * tickNanos - nowNanos);
+    }
+
+    /** Returns the number of timeouts waiting to run. */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Takes every timeout that is due by the given tick out of the given
+     * slot, and returns them linked together by their next fields.
+     */
+    private Timeout expire(int slot, long targetTick) {
+        Timeout expired = null;
+        var timeout = slots[slot];
+
+        while (timeout != null) {
+            var next = timeout.next;
+
+            // Timeouts more than a turn of the wheel away stay where they
+            // are.
+            if (timeout.deadlineTick <= targetTick) {
+                remove(timeout);
+                timeout.state = State.EXPIRED;
+                timeout.next = expired;
+                expired = timeout;
+            }
+
+            timeout = next;
+        }
+
+        return expired;
+    }
+
+    /**
+     * Runs the given timeouts' tasks. The timeouts are taken out of the
+     * wheel before any of them are run, so a task can safely cancel (or
+     * schedule) any other timeout.
+     */
+    private static void runExpired(Timeout timeout) {
+        while (timeout != null) {
+            var next = timeout.next;
+            timeout.next = null;
+
+            if (timeout.state == State.EXPIRED) {
+                timeout.state = State.DONE;
+
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException ex) {
+                    System.err.println("A timer task failed.");
+                    ex.printStackTrace();
+                }
+            }
+
+            timeout = next;
+        }
+    }
+
+    /** Unlinks a scheduled timeout from its slot. */
+    private void remove(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+
+        timeout.previous = null;
+        timeout.next = null;
+        size--;
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.samjakob.sockets_example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Passes published messages on to the connections subscribed to their
+ * topics, turning the server into a simple message hub.
+ *
+ * Connections subscribe (and publish) with the {@link ScuffedProtocol}'s
+ * SUBSCRIBE and PUBLISH frames, and every event loop shares one hub, so a
+ * message published on one loop reaches subscribers on all of them. The
+ * subscriptions are kept in a {@link TopicTrie}, which any loop can search
+ * without taking a lock.
+ *
+ * A message may go to thousands of subscribers, so it is encoded only once,
+ * into a single {@link SharedFrame}, which is then pushed to every
+ * subscriber. Each subscriber writes the same bytes from a view of its own,
+ * and the frame's buffer goes back to the pool once the last of them has
+ * finished with it. Publishing therefore costs the same memory however
+ * many subscribers there are, and the publisher's event loop does no more
+ * than hand the frame to each subscriber's loop.
+ *
+ * Only the non-blocking engines' connections can be subscribers, as only
+ * they can be sent messages by other threads.
+ */
+final class TopicHub {
+
+    /**
+     * Holds the hub shared by every event loop, which is only created the
+     * first time it is needed.
+     */
+    private static final class Shared {
+        private static final TopicHub HUB = new TopicHub(BufferPool.shared());
+    }
+
+    private final TopicTrie<NioConnection> subscriptions = new TopicTrie<>();
+
+    /** The pool that encoded messages are leased from. */
+    private final BufferPool pool;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    TopicHub(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the hub shared by every event loop.
+     */
+    static TopicHub shared() {
+        return Shared.HUB;
+    }
+
+    /**
+     * Subscribes a connection to a pattern. This may be called from any
+     * thread.
+     *
+     * @return Whether the connection was subscribed, which it isn't if it
+     *         was already subscribed to the same pattern.
+     * @throws IllegalArgumentException If the pattern isn't valid.
+     */
+    boolean subscribe(String pattern, NioConnection connection) {
+        return subscriptions.subscribe(pattern, connection);
+    }
+
+    /**
+     * Unsubscribes a connection from a pattern. This may be called from any
+     * thread.
+     *
+     * @return Whether the connection was subscribed to the pattern.
+     * @throws IllegalArgumentException If the pattern isn't valid.
+     */
+    boolean unsubscribe(String pattern, NioConnection connection) {
+        return subscriptions.unsubscribe(pattern, connection);
+    }
+
+    /**
+     * Sends a message to every connection subscribed to its topic. This may
+     * be called from any thread.
+     *
+     * @param payload The payload of the PUBLISH frame that published the
+     *                message: the topic, a separator and the message. It is
+     *                copied, so it may be reused as soon as this returns.
+     *                Its position is left unchanged.
+     * @return The number of connections the message was sent to, or -1 if
+     *         the topic isn't valid.
+     * @throws ProtocolException If the payload has no topic separator.
+     */
+    int publish(ByteBuffer payload) throws ProtocolException {
+        // The topic is split (and checked) before anything else, so that an
+        // invalid one costs nothing more, and only split once.
+        List<String> topic;
+        try {
+            topic = TopicTrie.parseTopic(topicOf(payload));
+        } catch (IllegalArgumentException ex) {
+            return -1;
+        }
+
+        published.increment();
+
+        // The publisher's reference keeps the frame alive until every
+        // subscriber has been given its own.
+        var frame = SharedFrame.encode(
+            pool,
+            ScuffedProtocol.PUBLISH,
+            ScuffedProtocol.NO_CORRELATION_ID,
+            payload
+        );
+
+        try {
+            var count = subscriptions.match(topic, connection -> {
+                frame.retain();
+                connection.pushFrame(frame);
+            });
+
+            delivered.add(count);
+            return count;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Describes the hub's subscriptions and traffic, for
+     * {@link ServerMetrics}.
+     */
+    String describe() {
+        return "pub/sub: subscriptions=" + subscriptions.size() +
+            ", published=" + published.sum() +
+            ", delivered=" + delivered.sum();
+    }
+
+    /**
+     * Returns the topic at the start of a PUBLISH payload.
+     *
+     * @throws ProtocolException If the payload has no topic separator.
+     */
+    private static String topicOf(ByteBuffer payload)
+        throws ProtocolException {
+        for (var i = payload.position(); i < payload.limit(); i++) {
+            if (payload.get(i) == ScuffedProtocol.TOPIC_SEPARATOR) {
+                var topic = payload.duplicate()
+                    .limit(i)
+                    .position(payload.position());
+                return StandardCharsets.UTF_8.decode(topic).toString();
+            }
+        }
+
+        throw new ProtocolException(
+            "A PUBLISH frame's payload has no topic separator."
+        );
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.samjakob.sockets_example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * An index of subscriptions to topics, which finds everyone subscribed to
+ * a topic without looking at every subscription.
+ *
+ * Topics are made up of 'segments' separated by dots, e.g.,
+ * {@code orders.uk.eu}. A subscription's pattern is a topic in which any
+ * segment may instead be a wildcard:
+ *
+ * <ul>
+ *     <li>{@code *} matches exactly one segment, so {@code orders.*.eu}
+ *     matches {@code orders.uk.eu} and {@code orders.fr.eu}, but not
+ *     {@code orders.eu} or {@code orders.uk.north.eu}.</li>
+ *     <li>{@code #} matches any number of segments (including none), and
+ *     may only be the last segment, so {@code orders.#} matches
+ *     {@code orders}, {@code orders.uk} and {@code orders.uk.eu}.</li>
+ * </ul>
+ *
+ * The patterns are kept in a 'trie': a tree with a node for every segment
+ * of every pattern, in which patterns that start with the same segments
+ * share the nodes for those segments. Matching a topic walks down the tree
+ * a segment at a time, following both the node for the segment itself and
+ * any wildcard nodes, so its cost depends on the length of the topic and
+ * the number of wildcards along the way, not on the number of
+ * subscriptions.
+ *
+ * Matching is done far more often than subscribing (every published
+ * message is matched), so it doesn't take a lock: each node's children are
+ * in a {@link ConcurrentHashMap}, and its subscribers are in an array that
+ * is replaced, never changed, whenever someone subscribes or unsubscribes.
+ * Subscribing and unsubscribing take the trie's lock, so only one thread
+ * ever changes the tree at a time.
+ *
+ * @param <T> The type of the subscribers.
+ */
+final class TopicTrie<T> {
+
+    /** The wildcard segment that matches exactly one segment. */
+    static final String ONE = "*";
+
+    /** The wildcard segment that matches any number of segments. */
+    static final String ANY = "#";
+
+    private static final Object[] NO_SUBSCRIBERS = {};
+
+    private static final class Node {
+        final ConcurrentHashMap<String, Node> children =
+            new ConcurrentHashMap<>();
+
+        /**
+         * Those subscribed to the pattern that ends at this node. This
+         * array is never changed; it is replaced with a new one instead.
+         */
+        volatile Object[] subscribers = NO_SUBSCRIBERS;
+
+        boolean isEmpty() {
+            return subscribers.length == 0 && children.isEmpty();
+        }
+    }
+
+    private final Node root = new Node();
+
+    /** The number of subscriptions. Guarded by {@code this}. */
+    private int size;
+
+    /**
+     * Subscribes to a pattern.
+     *
+     * @param pattern The pattern.
+     * @param subscriber The subscriber.
+     * @return Whether the subscriber was subscribed, which it isn't if it
+     *         was already subscribed to the same pattern.
+     * @throws IllegalArgumentException If the pattern isn't valid.
+     */
+    synchronized boolean subscribe(String pattern, T subscriber) {
+        var node = root;
+        for (var segment : parsePattern(pattern)) {
+            node = node.children.computeIfAbsent(segment, ignored -> new Node());
+        }
+
+        var subscribers = node.subscribers;
+        for (var existing : subscribers) {
+            if (existing == subscriber) return false;
+        }
+
+        var added = Arrays.copyOf(subscribers, subscribers.length + 1);
+        added[subscribers.length] = subscriber;
+        node.subscribers = added;
+        size++;
+        return true;
+    }
+
+    /**
+     * Undoes a {@link #subscribe(String, Object)}, and removes the nodes of
+     * the pattern that nothing needs any more.
+     *
+     * @param pattern The pattern.
+     * @param subscriber The subscriber.
+     * @return Whether the subscriber was subscribed to the pattern.
+     * @throws IllegalArgumentException If the pattern isn't valid.
+     */
+    synchronized boolean unsubscribe(String pattern, T subscriber) {
+        var segments = parsePattern(pattern);
+
+        // Remember the path, so that empty nodes can be removed on the way
+        // back up.
+        var path = new Node[segments.size() + 1];
+        path[0] = root;
+        for (var i = 0; i < segments.size(); i++) {
+            path[i + 1] = path[i].children.get(segments.get(i));
+            if (path[i + 1] == null) return false;
+        }
+
+        var node = path[segments.size()];
+        var subscribers = node.subscribers;
+        var index = -1;
+        for (var i = 0; i < subscribers.length; i++) {
+            if (subscribers[i] == subscriber) index = i;
+        }
+        if (index < 0) return false;
+
+        var removed = new Object[subscribers.length - 1];
+        System.arraycopy(subscribers, 0, removed, 0, index);
+        System.arraycopy(
+            subscribers, index + 1, removed, index, removed.length - index
+        );
+        node.subscribers = removed.length == 0 ? NO_SUBSCRIBERS : removed;
+        size--;
+
+        // A matcher that is already walking through a node we remove just
+        // finds it empty, which is no different from not finding it.
+        for (var i = segments.size(); i > 0 && path[i].isEmpty(); i--) {
+            path[i - 1].children.remove(segments.get(i - 1), path[i]);
+        }
+
+        return true;
+    }
+
+    /** Returns the number of subscriptions. */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gives every subscriber whose pattern matches the given topic to the
+     * given consumer. A subscriber with more than one matching pattern is
+     * only given to the consumer once.
+     *
+     * This may be called from any thread, at the same time as subscribing
+     * and unsubscribing; a subscription made (or removed) whilst this is
+     * running may or may not be seen.
+     *
+     * @param topic The topic.
+     * @param consumer Given each matching subscriber.
+     * @return The number of matching subscribers.
+     * @throws IllegalArgumentException If the topic isn't valid.
+     */
+    int match(String topic, Consumer<? super T> consumer) {
+        return match(parseTopic(topic), consumer);
+    }
+
+    /**
+     * Like {@link #match(String, Consumer)}, but for a topic that has
+     * already been split (and checked) with {@link #parseTopic(String)}, so
+     * that a caller that needs to check the topic first doesn't split it
+     * twice.
+     *
+     * @param segments The topic's segments.
+     * @param consumer Given each matching subscriber.
+     * @return The number of matching subscribers.
+     */
+    int match(List<String> segments, Consumer<? super T> consumer) {
+        // Most topics only match one pattern, in which case there can't be
+        // any duplicates to skip, so collect the matching arrays first.
+        var matches = new ArrayList<Object[]>(2);
+        collect(root, segments, 0, matches);
+        if (matches.isEmpty()) return 0;
+        if (matches.size() == 1) {
+            var subscribers = matches.get(0);
+            for (var subscriber : subscribers) consumer.accept(cast(subscriber));
+            return subscribers.length;
+        }
+
+        var seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (var subscribers : matches) {
+            for (var subscriber : subscribers) {
+                if (seen.add(subscriber)) consumer.accept(cast(subscriber));
+            }
+        }
+
+        return seen.size();
+    }
+
+    /**
+     * Adds the (non-empty) subscriber arrays of every pattern under the
+     * given node that matches the segments of the topic from the given
+     * index onwards to {@code matches}.
+     */
+    private static void collect(
+        Node node,
+        List<String> segments,
+        int index,
+        List<Object[]> matches
+    ) {
+        // '#' matches whatever is left, even if nothing is.
+        var any = node.children.get(ANY);
+        if (any != null && any.subscribers.length > 0) {
+            matches.add(any.subscribers);
+        }
+
+        if (index == segments.size()) {
+            if (node.subscribers.length > 0) matches.add(node.subscribers);
+            return;
+        }
+
+        var exact = node.children.get(segments.get(index));
+        if (exact != null) collect(exact, segments, index + 1, matches);
+
+        var one = node.children.get(ONE);
+        if (one != null) collect(one, segments, index + 1, matches);
+    }
+
+    /**
+     * Only subscribers of type T are ever added to the arrays, so the
+     * arrays' elements can always be cast back.
+     */
+    @SuppressWarnings("unchecked")
+    private T cast(Object subscriber) {
+        return (T) subscriber;
+    }
+
+    /**
+     * Splits a pattern into its segments, checking that it is valid: that
+     * no segment is empty, and that {@link #ANY} is only the last segment.
+     */
+    static List<String> parsePattern(String pattern) {
+        var segments = split(pattern, "pattern");
+        for (var i = 0; i < segments.size() - 1; i++) {
+            if (segments.get(i).equals(ANY)) {
+                throw new IllegalArgumentException(
+                    "'" + ANY + "' may only be the last segment of a " +
+                    "pattern: " + pattern
+                );
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Splits a topic into its segments, checking that it is valid: that no
+     * segment is empty or a wildcard.
+     */
+    static List<String> parseTopic(String topic) {
+        var segments = split(topic, "topic");
+        for (var segment : segments) {
+            if (segment.equals(ONE) || segment.equals(ANY)) {
+                throw new IllegalArgumentException(
+                    "A topic can't contain wildcards: " + topic
+                );
+            }
+        }
+        return segments;
+    }
+
+    private static List<String> split(String text, String kind) {
+        var segments = List.of(text.split("\\.", -1));
+        for (var segment : segments) {
+            if (segment.isEmpty()) {
+                throw new IllegalArgumentException(
+                    "A " + kind + " can't have empty segments: '" + text + "'"
+                );
+            }
+        }
+        return segments;
+    }
+
+}
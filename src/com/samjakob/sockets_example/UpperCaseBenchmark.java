@@ -0,0 +1,139 @@
+package com.samjakob.sockets_example;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A runnable benchmark that compares converting messages to upper case with
+ * {@link AsciiCase} against the original approach of decoding each message
+ * into a String, calling toUpperCase on it and encoding it again.
+ *
+ * For each message size and kind of text, it reports the time and the
+ * number of bytes allocated per message. Each message is first copied into
+ * a 'receive buffer' (as if it had just been read from a socket), for both
+ * approaches, so that the in-place conversion always has lower case text to
+ * work on.
+ *
+ * Usage: {@code UpperCaseBenchmark [--seconds=N]}, where {@code --seconds}
+ * is roughly how long each measurement runs for (default: 1).
+ */
+public class UpperCaseBenchmark {
+
+    /** The message sizes (in bytes) that are measured. */
+    private static final int[] SIZES = { 16, 128, 1024, 16384 };
+
+    /** Something to do with the results, so the JIT can't throw them away. */
+    private static long checksum;
+
+    public static void main(String[] args) {
+        var seconds = 1;
+
+        for (var arg : args) {
+            if (arg.startsWith("--seconds=")) {
+                seconds = ServerConfig.parsePositive(
+                    "seconds", arg.substring("--seconds=".length())
+                );
+            } else {
+                System.err.println("Unknown option: " + arg);
+                System.err.println("Usage: UpperCaseBenchmark [--seconds=N]");
+                return;
+            }
+        }
+
+        System.out.printf(
+            "%-8s %8s %16s %16s %16s %16s%n",
+            "text", "size", "string ns/msg", "string B/msg",
+            "ascii ns/msg", "ascii B/msg"
+        );
+
+        for (var ascii : new boolean[] { true, false }) {
+            for (var size : SIZES) {
+                var message = message(size, ascii);
+                var receiveBuffer = ByteBuffer.allocate(size);
+
+                // Run each approach once before measuring it, so that the
+                // JIT compiler has warmed up.
+                measure(() -> stringPath(message, receiveBuffer), seconds);
+                var string = measure(
+                    () -> stringPath(message, receiveBuffer), seconds
+                );
+
+                measure(() -> asciiPath(message, receiveBuffer), seconds);
+                var inPlace = measure(
+                    () -> asciiPath(message, receiveBuffer), seconds
+                );
+
+                System.out.printf(
+                    "%-8s %8d %16.1f %16.1f %16.1f %16.1f%n",
+                    ascii ? "ascii" : "unicode", size,
+                    string.nanos, string.allocatedBytes,
+                    inPlace.nanos, inPlace.allocatedBytes
+                );
+            }
+        }
+
+        // Printed so that the work can't be optimized away.
+        if (checksum == 42) System.out.println();
+    }
+
+    /** The original approach, via a String. */
+    private static void stringPath(byte[] message, ByteBuffer receiveBuffer) {
+        System.arraycopy(message, 0, receiveBuffer.array(), 0, message.length);
+
+        var text = StandardCharsets.UTF_8.decode(receiveBuffer.clear()).toString();
+        var uppercase = text.toUpperCase().getBytes(StandardCharsets.UTF_8);
+        checksum += uppercase[uppercase.length - 1];
+    }
+
+    /** The new approach, converting the receive buffer in place. */
+    private static void asciiPath(byte[] message, ByteBuffer receiveBuffer) {
+        System.arraycopy(message, 0, receiveBuffer.array(), 0, message.length);
+
+        var uppercase = AsciiCase.toUpperCase(receiveBuffer.clear());
+        checksum += uppercase.get(uppercase.limit() - 1);
+    }
+
+    /** The average cost of converting one message. */
+    private record Result(double nanos, double allocatedBytes) {}
+
+    /**
+     * Runs the given conversion over and over for about the given number of
+     * seconds, and returns the average time and bytes allocated per run.
+     */
+    private static Result measure(Runnable conversion, int seconds) {
+        var threads = (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        var threadId = Thread.currentThread().getId();
+        var deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        var runs = 0L;
+
+        var startAllocated = threads.getThreadAllocatedBytes(threadId);
+        var start = System.nanoTime();
+
+        // Check the clock only every so often, so that reading it doesn't
+        // take up much of what we measure.
+        while (System.nanoTime() < deadline) {
+            for (var i = 0; i < 1_000; i++) conversion.run();
+            runs += 1_000;
+        }
+
+        var elapsed = System.nanoTime() - start;
+        var allocated = threads.getThreadAllocatedBytes(threadId) - startAllocated;
+        return new Result(elapsed / (double) runs, allocated / (double) runs);
+    }
+
+    /**
+     * Builds a lower case message of exactly the given size. If it isn't to
+     * be ASCII, its last character is a two byte 'é'.
+     */
+    private static byte[] message(int size, boolean ascii) {
+        var text = new StringBuilder(size);
+        while (text.length() < size) text.append("hello, world! ");
+        text.setLength(ascii ? size : size - 2);
+        if (!ascii) text.append('é');
+
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.samjakob.sockets_example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The server's default {@link MessageHandler}, which replies to every
+ * message with the same text in upper case (see {@link AsciiCase}).
+ */
+public final class UpperCaseHandler implements MessageHandler {
+
+    @Override
+    public String name() {
+        return "upper-case";
+    }
+
+    @Override
+    public ByteBuffer transform(ByteBuffer message) {
+        return AsciiCase.toUpperCase(message);
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.samjakob.sockets_example;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gives access to virtual threads when the running JVM supports them.
+ *
+ * Virtual threads are cheap threads managed by the JVM rather than the
+ * operating system. When one of them blocks on a socket, the JVM parks it
+ * and frees the underlying (carrier) platform thread to run another virtual
+ * thread, so we can keep writing simple blocking code without paying for a
+ * platform thread per connection.
+ *
+ * This project is written against Java 16, where virtual threads don't
+ * exist yet (they were added in Java 21), so they are looked up reflectively
+ * instead of being referenced directly.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task.
+     *
+     * @throws UnsupportedOperationException If the running JVM does not
+     *                                       support virtual threads.
+     */
+    static ExecutorService newPerTaskExecutor() {
+        var executor = newPerTaskExecutorOrNull();
+        if (executor == null) {
+            throw new UnsupportedOperationException(
+                "Virtual threads require Java 21 or newer but this is Java " +
+                Runtime.version().feature() + "."
+            );
+        }
+
+        return executor;
+    }
+
+    /**
+     * Starts a thread to run the given task: a virtual thread if the running
+     * JVM supports them, or otherwise a daemon platform thread with the
+     * given name. Either way, the thread won't keep the program running.
+     *
+     * This suits a task that spends nearly all of its time blocked (e.g.,
+     * waiting for console input), which a virtual thread does without
+     * holding on to a platform thread.
+     *
+     * @param name The name given to a platform thread.
+     * @param task The task to run.
+     * @return The started thread.
+     */
+    static Thread startVirtualOrDaemon(String name, Runnable task) {
+        try {
+            var start = MethodHandles.publicLookup().findStatic(
+                Thread.class,
+                "startVirtualThread",
+                MethodType.methodType(Thread.class, Runnable.class)
+            );
+            return (Thread) start.invoke(task);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            var thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(
+                "Failed to start a virtual thread.", ex
+            );
+        }
+    }
+
+    private static ExecutorService newPerTaskExecutorOrNull() {
+        try {
+            var factory = MethodHandles.publicLookup().findStatic(
+                Executors.class,
+                "newVirtualThreadPerTaskExecutor",
+                MethodType.methodType(ExecutorService.class)
+            );
+            return (ExecutorService) factory.invoke();
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            return null;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(
+                "Failed to create a virtual thread executor.", ex
+            );
+        }
+    }
+
+}
@@ -0,0 +1,323 @@
+package com.samjakob.sockets_example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Holds the outgoing data of a connection until it is flushed.
+ *
+ * Rather than writing each reply to the socket as soon as it is ready
+ * (which costs at least one system call per reply, and often sends each one
+ * in its own small TCP segment), replies are added to this queue and then
+ * all written together by {@link #flush(GatheringByteChannel)}.
+ *
+ * Flushing uses a 'gathering' write, which hands every queued buffer to the
+ * operating system in a single system call, so a frame's header and payload
+ * can be kept in separate buffers without copying them together first.
+ *
+ * Frames whose payloads can't be queued as they are (because the buffer
+ * they are in is about to be reused) are copied, with their headers, into
+ * a shared 'chunk' leased from a {@link BufferPool}, so that a burst of
+ * small replies is copied into one buffer rather than each into its own
+ * newly allocated one. Chunks go back to the pool once they've been
+ * written.
+ *
+ * This class is not thread-safe; it should only be used by the thread that
+ * serves the connection.
+ */
+final class WriteQueue {
+
+    /**
+     * The most buffers handed to a single gathering write. Operating systems
+     * limit this (e.g., IOV_MAX is 1024 on Linux), and Java splits larger
+     * writes up anyway.
+     */
+    private static final int MAX_BUFFERS_PER_WRITE = 1024;
+
+    /**
+     * The size of the chunks that copied frames are written into (unless a
+     * frame is bigger than this, in which case it gets a chunk of its own).
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * The queued buffers. Those from {@link #head} (inclusive) to
+     * {@link #tail} (exclusive) are still waiting to be written.
+     */
+    private ByteBuffer[] buffers = new ByteBuffer[16];
+
+    /**
+     * The owners of each of the queued buffers (e.g., the leases of chunks),
+     * at the same index as the buffer, to be released once the buffer has
+     * been written. This is null for buffers that nobody needs to be told
+     * about.
+     */
+    private Releasable[] owners = new Releasable[16];
+
+    private int head;
+    private int tail;
+
+    /**
+     * The number of bytes waiting to be written.
+     */
+    private long queuedBytes;
+
+    /**
+     * Told the number of bytes sent by every write system call.
+     */
+    private final LongConsumer onWrite;
+
+    /**
+     * The pool that chunks are leased from, or null to copy each frame into
+     * a new heap buffer instead.
+     */
+    private final BufferPool pool;
+
+    /**
+     * The chunk that copied frames are currently being added to, and the
+     * view of it that is queued (which covers the part of the chunk that
+     * hasn't been written yet). Both are null if there is no such chunk.
+     */
+    private BufferPool.Lease chunk;
+    private ByteBuffer chunkView;
+
+    /**
+     * The index of the queued view of {@link #chunk} that owns its lease,
+     * which is always the last of its views to be written.
+     */
+    private int chunkIndex;
+
+    /**
+     * Creates a queue whose writes are counted in the server's metrics, and
+     * which copies frames into chunks from the shared {@link BufferPool}.
+     */
+    WriteQueue() {
+        this(ServerMetrics::recordWrite, BufferPool.shared());
+    }
+
+    /**
+     * Creates a queue that copies frames into new heap buffers.
+     *
+     * @param onWrite Told the number of bytes sent by every write system
+     *                call.
+     */
+    WriteQueue(LongConsumer onWrite) {
+        this(onWrite, null);
+    }
+
+    /**
+     * @param onWrite Told the number of bytes sent by every write system
+     *                call.
+     * @param pool The pool that chunks are leased from, or null to copy
+     *             each frame into a new heap buffer instead.
+     */
+    WriteQueue(LongConsumer onWrite, BufferPool pool) {
+        this.onWrite = onWrite;
+        this.pool = pool;
+    }
+
+    /**
+     * Queues a frame, with its header and payload in separate buffers.
+     *
+     * @param opcode The frame's opcode.
+     * @param correlationId The frame's correlation ID.
+     * @param payload The frame's payload, from its position to its limit.
+     *                This is queued as it is rather than copied, so it must
+     *                not be changed until it has been written.
+     */
+    void addFrame(byte opcode, int correlationId, ByteBuffer payload) {
+        var length = payload.remaining();
+        var header = ByteBuffer.allocate(
+            ScuffedProtocol.headerLength(correlationId, length)
+        );
+        ScuffedProtocol.writeHeader(header, opcode, correlationId, length);
+
+        add(header.flip());
+        if (length > 0) add(payload);
+    }
+
+    /**
+     * Queues a frame, copying its payload (rather than queuing the payload
+     * buffer itself, as {@link #addFrame} does) so that the payload's buffer
+     * can be reused as soon as this returns.
+     *
+     * @param opcode The frame's opcode.
+     * @param correlationId The frame's correlation ID.
+     * @param payload The frame's payload, from its position to its limit.
+     *                Its position is moved to its limit.
+     */
+    void addFrameCopy(byte opcode, int correlationId, ByteBuffer payload) {
+        var length = payload.remaining();
+        if (pool == null) {
+            addFrame(
+                opcode,
+                correlationId,
+                ByteBuffer.allocate(length).put(payload).flip()
+            );
+            return;
+        }
+
+        var frameLength =
+            ScuffedProtocol.headerLength(correlationId, length) + length;
+        if (chunk == null || chunk.buffer().remaining() < frameLength) {
+            startChunk(Math.max(CHUNK_SIZE, frameLength));
+        } else if (buffers[tail - 1] != chunkView) {
+            // Something else has been queued since the last frame was
+            // copied into the chunk, so stretching the chunk's view over
+            // this frame would send it before that.
+            continueChunk();
+        }
+
+        var out = chunk.buffer();
+        ScuffedProtocol.writeHeader(out, opcode, correlationId, length);
+        out.put(payload);
+
+        // The chunk's view is the last thing queued, so it just needs to be
+        // stretched over the new frame.
+        chunkView.limit(out.position());
+        queuedBytes += frameLength;
+    }
+
+    /**
+     * Leases a new chunk and queues an (empty, for now) view of it. The
+     * previous chunk, if any, stays queued until it has been written.
+     */
+    private void startChunk(int capacity) {
+        chunk = pool.lease(capacity);
+        chunkView = chunk.buffer().duplicate().limit(0);
+        add(chunkView, chunk);
+        chunkIndex = tail - 1;
+    }
+
+    /**
+     * Queues a new (empty, for now) view of the current chunk, starting
+     * where the chunk's last frame ended. The new view takes over the
+     * chunk's lease from the previous one, so that the chunk is only given
+     * back once the last of its views has been written.
+     */
+    private void continueChunk() {
+        owners[chunkIndex] = null;
+
+        var start = chunk.buffer().position();
+        chunkView = chunk.buffer().duplicate().position(start).limit(start);
+        add(chunkView, chunk);
+        chunkIndex = tail - 1;
+    }
+
+    /**
+     * Queues a buffer to be written, from its position to its limit.
+     */
+    void add(ByteBuffer buffer) {
+        add(buffer, null);
+    }
+
+    /**
+     * Queues a buffer to be written, from its position to its limit, and
+     * releases its owner once it has been written (or thrown away by
+     * {@link #clear()}).
+     *
+     * @param buffer The buffer.
+     * @param owner The buffer's owner, or null if it has none.
+     */
+    void add(ByteBuffer buffer, Releasable owner) {
+        if (tail == buffers.length) {
+            if (head > 0) {
+                // Move the queued buffers back to the start of the array to
+                // make room, rather than growing it.
+                System.arraycopy(buffers, head, buffers, 0, tail - head);
+                System.arraycopy(owners, head, owners, 0, tail - head);
+                Arrays.fill(buffers, tail - head, tail, null);
+                Arrays.fill(owners, tail - head, tail, null);
+                chunkIndex -= head;
+                tail -= head;
+                head = 0;
+            } else {
+                buffers = Arrays.copyOf(buffers, buffers.length * 2);
+                owners = Arrays.copyOf(owners, owners.length * 2);
+            }
+        }
+
+        owners[tail] = owner;
+        buffers[tail++] = buffer;
+        queuedBytes += buffer.remaining();
+    }
+
+    /**
+     * Throws away everything waiting to be written (e.g., because the
+     * connection it was for has been lost), giving any chunks back to the
+     * pool.
+     */
+    void clear() {
+        while (head < tail) drop();
+        head = 0;
+        tail = 0;
+        queuedBytes = 0;
+    }
+
+    /**
+     * Removes the buffer at the head of the queue, releasing its owner (if
+     * it has one).
+     */
+    private void drop() {
+        var owner = owners[head];
+        if (owner != null) {
+            owner.release();
+            owners[head] = null;
+
+            if (owner == chunk) {
+                chunk = null;
+                chunkView = null;
+            }
+        }
+
+        buffers[head++] = null;
+    }
+
+    /**
+     * Returns whether there is nothing waiting to be written.
+     */
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written.
+     */
+    long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Writes as much of the queue to the channel as it will take.
+     *
+     * A blocking channel takes everything. A non-blocking channel may not
+     * (if the socket's send buffer fills up), in which case the rest stays
+     * queued for the next flush.
+     *
+     * @param channel The channel to write to.
+     * @return Whether everything queued was written.
+     * @throws IOException If the channel could not be written to.
+     */
+    boolean flush(GatheringByteChannel channel) throws IOException {
+        while (head < tail) {
+            var count = Math.min(tail - head, MAX_BUFFERS_PER_WRITE);
+            var written = channel.write(buffers, head, count);
+            onWrite.accept(written);
+            queuedBytes -= written;
+
+            // Drop every buffer that has now been written in full.
+            while (head < tail && !buffers[head].hasRemaining()) drop();
+
+            // The socket's send buffer is full, so try again later.
+            if (written == 0) return false;
+        }
+
+        head = 0;
+        tail = 0;
+        return true;
+    }
+
+}
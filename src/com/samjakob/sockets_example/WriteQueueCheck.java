@@ -0,0 +1,159 @@
+package com.samjakob.sockets_example;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A runnable check that a {@link WriteQueue} writes frames in the order
+ * they were queued, however copied frames (which share chunks) and queued
+ * frames (whose buffers are queued as they are) are mixed.
+ *
+ * It queues a long, random mix of both kinds, each carrying the next
+ * correlation ID, and flushes them every so often to a channel that only
+ * takes a few bytes per write, so that chunks are often left partly
+ * written. The frames that come out must have correlation IDs 1, 2, 3 and
+ * so on, with the payload they were queued with, and every chunk must have
+ * gone back to the pool.
+ *
+ * The process exits with status 1 if any of that isn't so.
+ */
+public class WriteQueueCheck {
+
+    /** The number of frames queued. */
+    private static final int FRAMES = 100_000;
+
+    /** The most bytes the channel takes per write. */
+    private static final int MAX_BYTES_PER_WRITE = 64;
+
+    /**
+     * A channel that keeps what is written to it, and takes a random
+     * number of bytes (possibly none) from each write.
+     */
+    private static final class SlowChannel implements GatheringByteChannel {
+        private final ByteArrayOutputStream written =
+            new ByteArrayOutputStream();
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            var allowed = ThreadLocalRandom.current().nextInt(
+                MAX_BYTES_PER_WRITE + 1
+            );
+            var total = 0;
+
+            for (var i = offset; i < offset + length && total < allowed; i++) {
+                var source = sources[i];
+                while (source.hasRemaining() && total < allowed) {
+                    written.write(source.get());
+                    total++;
+                }
+            }
+
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[] { source }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    public static void main(String[] args) throws Exception {
+        var pool = new BufferPool();
+        var queue = new WriteQueue(bytes -> {}, pool);
+        var channel = new SlowChannel();
+        var random = ThreadLocalRandom.current();
+
+        for (var id = 1; id <= FRAMES; id++) {
+            var payload = ByteBuffer.wrap(
+                payloadOf(id).getBytes(StandardCharsets.UTF_8)
+            );
+
+            if (random.nextBoolean()) {
+                queue.addFrameCopy(ScuffedProtocol.DATA, id, payload);
+            } else {
+                queue.addFrame(ScuffedProtocol.ERROR, id, payload);
+            }
+
+            // Flush now and again, without waiting for everything to be
+            // written, as a non-blocking connection would.
+            if (random.nextInt(8) == 0) queue.flush(channel);
+        }
+
+        while (!queue.flush(channel)) {
+            // The channel took nothing this time, so try again.
+        }
+
+        var failures = verify(ByteBuffer.wrap(channel.written.toByteArray()));
+
+        var poolReport = pool.describe();
+        if (!poolReport.contains("outstanding=0")) {
+            failures++;
+            System.err.println("Chunks were not given back: " + poolReport);
+        }
+
+        if (failures > 0) {
+            System.err.println("FAILED: " + failures + " problem(s).");
+            System.exit(1);
+        }
+
+        System.out.println("PASSED: " + FRAMES + " frames written in order.");
+        System.exit(0);
+    }
+
+    /**
+     * Decodes every frame that was written, counting those that are out of
+     * order or carry the wrong payload.
+     */
+    private static int verify(ByteBuffer written) throws Exception {
+        var frame = new ScuffedProtocol.Frame();
+        var expected = 1;
+        var failures = 0;
+
+        while (ScuffedProtocol.decode(written, frame)) {
+            var payload = StandardCharsets.UTF_8
+                .decode(frame.payload)
+                .toString();
+            if (frame.correlationId != expected
+                || !payload.equals(payloadOf(frame.correlationId))) {
+                if (failures++ < 10) {
+                    System.err.println(
+                        "Expected frame " + expected + " but got frame " +
+                        frame.correlationId + " (" + payload + ")"
+                    );
+                }
+            }
+            expected = frame.correlationId + 1;
+        }
+
+        if (expected != FRAMES + 1 || written.hasRemaining()) {
+            failures++;
+            System.err.println(
+                "Expected " + FRAMES + " whole frames, but the last was " +
+                (expected - 1)
+            );
+        }
+
+        return failures;
+    }
+
+    private static String payloadOf(int id) {
+        return "frame " + id + " " + "x".repeat(id % 37);
+    }
+
+}